@@ -0,0 +1,310 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Downsampling by integer factors per dimension that indexes the backing
+ * arrays of {@link ArrayImg ArrayImgs} and {@link PlanarImg PlanarImgs} of
+ * {@link UnsignedByteType}, {@link UnsignedShortType}, and
+ * {@link FloatType} directly.  It is used by {@link GenericDownsampler}
+ * whenever source and target qualify.
+ *
+ * <p>Both images are treated as a sequence of rows along dimension 0, each
+ * of which is a contiguous range of one storage array.  Each target row is
+ * the average of the <code>factors[1] &times; &hellip; &times;
+ * factors[n-1]</code> source rows at its scaled position in dimensions 1 to
+ * n-1, each source row contributing <code>factors[0]</code> adjacent pixels.
+ * Sums are accumulated in long or double, integer averages are rounded half
+ * up.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+final public class ArrayDownsampler
+{
+	private ArrayDownsampler(){}
+
+	/**
+	 * Rows of a {@link ArrayImg} or {@link PlanarImg} along dimension 0.
+	 */
+	final static protected class Rows
+	{
+		final protected Object[] planes;
+		final protected long rowsPerPlane;
+		final protected int width;
+		final protected long[] dimensions;
+
+		protected Rows( final Object[] planes, final long rowsPerPlane, final long[] dimensions )
+		{
+			this.planes = planes;
+			this.rowsPerPlane = rowsPerPlane;
+			this.width = ( int )dimensions[ 0 ];
+			this.dimensions = dimensions;
+		}
+
+		final public Object array( final long row )
+		{
+			return planes[ ( int )( row / rowsPerPlane ) ];
+		}
+
+		final public int offset( final long row )
+		{
+			return ( int )( row % rowsPerPlane ) * width;
+		}
+
+		final public long numRows()
+		{
+			return ArrayDownsampler.numRows( dimensions );
+		}
+	}
+
+	final static protected long numRows( final long[] dimensions )
+	{
+		long n = 1;
+		for ( int d = 1; d < dimensions.length; ++d )
+			n *= dimensions[ d ];
+		return n;
+	}
+
+	/**
+	 * @return the rows of <code>img</code> if it is an {@link ArrayImg} or
+	 * 		{@link PlanarImg}, <code>null</code> otherwise
+	 */
+	final static protected Rows rows( final RandomAccessibleInterval< ? > img )
+	{
+		final long[] dimensions = new long[ img.numDimensions() ];
+		img.dimensions( dimensions );
+		if ( img instanceof ArrayImg )
+		{
+			final Object access = ( ( ArrayImg< ?, ? > )img ).update( null );
+			if ( !( access instanceof ArrayDataAccess ) )
+				return null;
+			return new Rows(
+					new Object[]{ ( ( ArrayDataAccess< ? > )access ).getCurrentStorageArray() },
+					numRows( dimensions ),
+					dimensions );
+		}
+		else if ( img instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > planarImg = ( PlanarImg< ?, ? > )img;
+			final Object[] planes = new Object[ planarImg.numSlices() ];
+			for ( int i = 0; i < planes.length; ++i )
+				planes[ i ] = planarImg.getPlane( i ).getCurrentStorageArray();
+			return new Rows( planes, dimensions.length > 1 ? dimensions[ 1 ] : 1, dimensions );
+		}
+		else
+			return null;
+	}
+
+	/**
+	 * @return true if the fast path can downsample <code>source</code> into
+	 * 		<code>target</code> by <code>factors</code>
+	 */
+	final static public boolean isSupported(
+			final RandomAccessibleInterval< ? > source,
+			final RandomAccessibleInterval< ? > target,
+			final int[] factors )
+	{
+		if ( !( source instanceof ArrayImg || source instanceof PlanarImg ) )
+			return false;
+		if ( !( target instanceof ArrayImg || target instanceof PlanarImg ) )
+			return false;
+
+		final int n = source.numDimensions();
+		if ( target.numDimensions() != n )
+			return false;
+		for ( int d = 0; d < n; ++d )
+			if ( target.dimension( d ) != source.dimension( d ) / factors[ d ] || target.dimension( d ) == 0 )
+				return false;
+
+		final Class< ? > type = source.randomAccess().get().getClass();
+		if ( type != target.randomAccess().get().getClass() )
+			return false;
+		return
+				type == UnsignedByteType.class ||
+				type == UnsignedShortType.class ||
+				type == FloatType.class;
+	}
+
+	/**
+	 * Downsample <code>source</code> into <code>target</code> by
+	 * <code>factors</code> if both are supported by
+	 * {@link #isSupported(RandomAccessibleInterval, RandomAccessibleInterval, int[])}.
+	 *
+	 * @return true if <code>target</code> was written, false if the caller
+	 * 		has to fall back to the generic implementation
+	 */
+	final static public boolean downsample(
+			final RandomAccessibleInterval< ? > source,
+			final RandomAccessibleInterval< ? > target,
+			final int[] factors )
+	{
+		if ( !isSupported( source, target, factors ) )
+			return false;
+
+		final Rows sourceRows = rows( source );
+		final Rows targetRows = rows( target );
+		if ( sourceRows == null || targetRows == null )
+			return false;
+
+		downsample( sourceRows, targetRows, factors, 0, targetRows.numRows() );
+		return true;
+	}
+
+	/**
+	 * Downsample the target rows in [minRow, maxRow).
+	 */
+	final static protected void downsample(
+			final Rows sourceRows,
+			final Rows targetRows,
+			final int[] factors,
+			final long minRow,
+			final long maxRow )
+	{
+		final int n = sourceRows.dimensions.length;
+		int k = 1;
+		for ( int d = 1; d < n; ++d )
+			k *= factors[ d ];
+		final int f0 = factors[ 0 ];
+		final long count = ( long )k * f0;
+
+		/* row strides of the source in dimensions 1..n-1 */
+		final long[] strides = new long[ n ];
+		strides[ 0 ] = 0;
+		if ( n > 1 )
+			strides[ 1 ] = 1;
+		for ( int d = 2; d < n; ++d )
+			strides[ d ] = strides[ d - 1 ] * sourceRows.dimensions[ d - 1 ];
+
+		/* offsets of the k source rows relative to the first, dimension 1 fastest */
+		final long[] rowOffsets = new long[ k ];
+		for ( int i = 0; i < k; ++i )
+			for ( int d = 1, j = i; d < n; ++d )
+			{
+				rowOffsets[ i ] += ( j % factors[ d ] ) * strides[ d ];
+				j /= factors[ d ];
+			}
+
+		final Object[] arrays = new Object[ k ];
+		final int[] offsets = new int[ k ];
+		final long[] position = new long[ n ];
+
+		for ( long row = minRow; row < maxRow; ++row )
+		{
+			/* position of the target row and first source row */
+			long r = row;
+			long sourceRow = 0;
+			for ( int d = 1; d < n; ++d )
+			{
+				position[ d ] = r % targetRows.dimensions[ d ];
+				r /= targetRows.dimensions[ d ];
+				sourceRow += factors[ d ] * position[ d ] * strides[ d ];
+			}
+			for ( int i = 0; i < k; ++i )
+			{
+				arrays[ i ] = sourceRows.array( sourceRow + rowOffsets[ i ] );
+				offsets[ i ] = sourceRows.offset( sourceRow + rowOffsets[ i ] );
+			}
+
+			final Object targetArray = targetRows.array( row );
+			final int targetOffset = targetRows.offset( row );
+			final int width = targetRows.width;
+
+			if ( targetArray instanceof byte[] )
+				downsampleUnsignedBytes( arrays, offsets, ( byte[] )targetArray, targetOffset, width, f0, count );
+			else if ( targetArray instanceof short[] )
+				downsampleUnsignedShorts( arrays, offsets, ( short[] )targetArray, targetOffset, width, f0, count );
+			else
+				downsampleFloats( arrays, offsets, ( float[] )targetArray, targetOffset, width, f0, 1.0 / count );
+		}
+	}
+
+	final static private void downsampleUnsignedBytes(
+			final Object[] arrays,
+			final int[] offsets,
+			final byte[] target,
+			final int targetOffset,
+			final int width,
+			final int f0,
+			final long count )
+	{
+		final long half = count / 2;
+		for ( int x = 0; x < width; ++x )
+		{
+			long sum = half;
+			for ( int i = 0; i < arrays.length; ++i )
+			{
+				final byte[] a = ( byte[] )arrays[ i ];
+				for ( int j = offsets[ i ] + f0 * x, jMax = j + f0; j < jMax; ++j )
+					sum += a[ j ] & 0xff;
+			}
+			target[ targetOffset + x ] = ( byte )( sum / count );
+		}
+	}
+
+	final static private void downsampleUnsignedShorts(
+			final Object[] arrays,
+			final int[] offsets,
+			final short[] target,
+			final int targetOffset,
+			final int width,
+			final int f0,
+			final long count )
+	{
+		final long half = count / 2;
+		for ( int x = 0; x < width; ++x )
+		{
+			long sum = half;
+			for ( int i = 0; i < arrays.length; ++i )
+			{
+				final short[] a = ( short[] )arrays[ i ];
+				for ( int j = offsets[ i ] + f0 * x, jMax = j + f0; j < jMax; ++j )
+					sum += a[ j ] & 0xffff;
+			}
+			target[ targetOffset + x ] = ( short )( sum / count );
+		}
+	}
+
+	final static private void downsampleFloats(
+			final Object[] arrays,
+			final int[] offsets,
+			final float[] target,
+			final int targetOffset,
+			final int width,
+			final int f0,
+			final double div )
+	{
+		for ( int x = 0; x < width; ++x )
+		{
+			double sum = 0;
+			for ( int i = 0; i < arrays.length; ++i )
+			{
+				final float[] a = ( float[] )arrays[ i ];
+				for ( int j = offsets[ i ] + f0 * x, jMax = j + f0; j < jMax; ++j )
+					sum += a[ j ];
+			}
+			target[ targetOffset + x ] = ( float )( sum * div );
+		}
+	}
+}
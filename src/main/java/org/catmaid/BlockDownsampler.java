@@ -0,0 +1,321 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.view.Views;
+
+/**
+ * Out-of-core downsampling by integer factors of a
+ * {@link RandomAccessibleInterval} that does not fit into memory, e.g. a
+ * {@link CATMAIDRandomAccessibleInterval} or a cell image.  The target is
+ * generated in blocks of a fixed size.  For each target block, the aligned
+ * source block of <code>factors</code> times the size is copied into an
+ * {@link ArrayImg},
+ * downsampled by {@link GenericDownsampler}, and handed to a
+ * {@link BlockSink}.  At most <code>maxBlocksInFlight</code> blocks are
+ * held in memory at any time.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class BlockDownsampler< T extends NativeType< T > & NumericType< T > >
+{
+	/**
+	 * Receives finished target blocks.  Blocks are written concurrently from
+	 * the threads of the {@link ExecutorService}, implementations have to
+	 * be thread safe.
+	 */
+	static public interface BlockSink< T >
+	{
+		/**
+		 * @param gridPosition position of the block in the block grid
+		 * @param block the block, with its min at 0, blocks at the upper
+		 * 		border of the target may be smaller than the block size
+		 */
+		public void write( final long[] gridPosition, final RandomAccessibleInterval< T > block ) throws IOException;
+	}
+
+	final protected RandomAccessibleInterval< T > source;
+	final protected long[] dimensions;
+	final protected int[] blockSize;
+	final protected int[] factors;
+	final protected BlockSink< T > sink;
+	final protected int maxBlocksInFlight;
+
+	/**
+	 * @param source
+	 * @param factors integer downsampling factor per dimension
+	 * @param blockSize size of target blocks
+	 * @param sink
+	 * @param maxBlocksInFlight maximum number of blocks that are loaded,
+	 * 		downsampled, or written at the same time
+	 */
+	public BlockDownsampler(
+			final RandomAccessibleInterval< T > source,
+			final int[] factors,
+			final int[] blockSize,
+			final BlockSink< T > sink,
+			final int maxBlocksInFlight )
+	{
+		this.source = Views.zeroMin( source );
+		this.factors = factors.clone();
+		this.blockSize = blockSize;
+		this.sink = sink;
+		this.maxBlocksInFlight = maxBlocksInFlight;
+
+		dimensions = GenericDownsampler.scaledSize( source, factors );
+	}
+
+	/**
+	 * Downsample by a factor of 2 in all dimensions.
+	 *
+	 * @param source
+	 * @param blockSize size of target blocks
+	 * @param sink
+	 * @param maxBlocksInFlight maximum number of blocks that are loaded,
+	 * 		downsampled, or written at the same time
+	 */
+	public BlockDownsampler(
+			final RandomAccessibleInterval< T > source,
+			final int[] blockSize,
+			final BlockSink< T > sink,
+			final int maxBlocksInFlight )
+	{
+		this( source, GenericDownsampler.twos( source.numDimensions() ), blockSize, sink, maxBlocksInFlight );
+	}
+
+	/**
+	 * @return dimensions of the target
+	 */
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	/**
+	 * @return the number of blocks in each dimension of the target
+	 */
+	public long[] getGridSize()
+	{
+		final long[] gridSize = new long[ dimensions.length ];
+		for ( int d = 0; d < gridSize.length; ++d )
+			gridSize[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+		return gridSize;
+	}
+
+	/**
+	 * Copy one source block, downsample it, and pass it to the sink.
+	 */
+	protected void downsampleBlock( final long[] gridPosition ) throws Exception
+	{
+		final int n = dimensions.length;
+		final long[] sourceMin = new long[ n ];
+		final long[] sourceSize = new long[ n ];
+		final long[] targetSize = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			final long min = gridPosition[ d ] * blockSize[ d ];
+			targetSize[ d ] = Math.min( blockSize[ d ], dimensions[ d ] - min );
+			sourceMin[ d ] = factors[ d ] * min;
+			sourceSize[ d ] = factors[ d ] * targetSize[ d ];
+		}
+
+		final T type = source.randomAccess().get().createVariable();
+		final ArrayImgFactory< T > factory = new ArrayImgFactory< T >();
+		final ArrayImg< T, ? > sourceBlock = factory.create( sourceSize, type );
+		Tiler.copyTile( Views.offsetInterval( source, sourceMin, sourceSize ), sourceBlock );
+
+		final ArrayImg< T, ? > targetBlock = factory.create( targetSize, type );
+		GenericDownsampler.create( sourceBlock, targetBlock, factors ).call();
+
+		sink.write( gridPosition, targetBlock );
+	}
+
+	/**
+	 * @return the number of blocks in [minGrid, maxGrid]
+	 */
+	static protected long numBlocks( final long[] minGrid, final long[] maxGrid )
+	{
+		long numBlocks = 1;
+		for ( int d = 0; d < minGrid.length; ++d )
+			numBlocks *= Math.max( 0, maxGrid[ d ] - minGrid[ d ] + 1 );
+		return numBlocks;
+	}
+
+	/**
+	 * @return the i-th block in [minGrid, maxGrid] in flat order
+	 */
+	static protected long[] gridPosition( final long i, final long[] minGrid, final long[] maxGrid )
+	{
+		final long[] gridPosition = new long[ minGrid.length ];
+		long j = i;
+		for ( int d = 0; d < gridPosition.length; ++d )
+		{
+			final long s = maxGrid[ d ] - minGrid[ d ] + 1;
+			gridPosition[ d ] = minGrid[ d ] + j % s;
+			j /= s;
+		}
+		return gridPosition;
+	}
+
+	/**
+	 * @return the largest grid position
+	 */
+	protected long[] maxGrid()
+	{
+		final long[] maxGrid = getGridSize();
+		for ( int d = 0; d < maxGrid.length; ++d )
+			--maxGrid[ d ];
+		return maxGrid;
+	}
+
+	/**
+	 * Downsample the blocks in [minGrid, maxGrid] in flat order in the
+	 * calling thread.
+	 */
+	public void run( final long[] minGrid, final long[] maxGrid ) throws Exception
+	{
+		for ( long i = 0, n = numBlocks( minGrid, maxGrid ); i < n; ++i )
+			downsampleBlock( gridPosition( i, minGrid, maxGrid ) );
+	}
+
+	/**
+	 * Downsample all blocks in flat order in the calling thread.
+	 */
+	public void run() throws Exception
+	{
+		run( new long[ dimensions.length ], maxGrid() );
+	}
+
+	/**
+	 * Downsample the blocks in [minGrid, maxGrid] in flat order on
+	 * <code>service</code>.  Blocks are submitted only when fewer than
+	 * <code>maxBlocksInFlight</code> blocks are in progress.  After the
+	 * first failure, no more blocks are submitted and submitted blocks that
+	 * did not start yet are skipped.
+	 *
+	 * @param service
+	 * @param minGrid
+	 * @param maxGrid
+	 * @throws InterruptedException
+	 * @throws ExecutionException with the first failure of a block
+	 */
+	public void run(
+			final ExecutorService service,
+			final long[] minGrid,
+			final long[] maxGrid ) throws InterruptedException, ExecutionException
+	{
+		final Semaphore inFlight = new Semaphore( maxBlocksInFlight );
+		final AtomicReference< Throwable > failure = new AtomicReference< Throwable >();
+		final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >();
+
+		try
+		{
+			for ( long i = 0, n = numBlocks( minGrid, maxGrid ); i < n && failure.get() == null; ++i )
+			{
+				final long[] gridPosition = gridPosition( i, minGrid, maxGrid );
+
+				inFlight.acquire();
+				try
+				{
+					futures.add( service.submit(
+							new Callable< Void >()
+							{
+								@Override
+								public Void call() throws Exception
+								{
+									try
+									{
+										if ( failure.get() == null )
+											downsampleBlock( gridPosition );
+									}
+									catch ( final Exception e )
+									{
+										failure.compareAndSet( null, e );
+										throw e;
+									}
+									catch ( final Error e )
+									{
+										failure.compareAndSet( null, e );
+										throw e;
+									}
+									finally
+									{
+										inFlight.release();
+									}
+									return null;
+								}
+							} ) );
+				}
+				catch ( final RuntimeException e )
+				{
+					inFlight.release();
+					throw e;
+				}
+
+				/* forget finished blocks */
+				if ( futures.size() > 2 * maxBlocksInFlight )
+					for ( final Iterator< Future< Void > > f = futures.iterator(); f.hasNext(); )
+						if ( f.next().isDone() )
+							f.remove();
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			/* blocks that did not start yet are skipped */
+			failure.compareAndSet( null, e );
+			throw e;
+		}
+
+		for ( final Future< Void > future : futures )
+		{
+			try
+			{
+				future.get();
+			}
+			catch ( final ExecutionException e )
+			{
+				/* reported as the first failure below */
+			}
+		}
+		if ( failure.get() != null )
+			throw new ExecutionException( failure.get() );
+	}
+
+	/**
+	 * Downsample all blocks in flat order on <code>service</code>, see
+	 * {@link #run(ExecutorService, long[], long[])}.
+	 */
+	public void run( final ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		run( service, new long[ dimensions.length ], maxGrid() );
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Pool of pixel arrays and {@link BufferedImage BufferedImages} for the
+ * short-lived per-tile buffers of decoding, exporting, and scaling tiles.
+ * Buffers are pooled by size class, i.e. by length for arrays and by width,
+ * height, and type for images, which are few in a tile export.  Taken
+ * buffers are not cleared.  A released buffer must not be used anymore by
+ * the releasing code, buffers that are not released are simply left to the
+ * garbage collector.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class BufferPool
+{
+	static protected class ImageClass
+	{
+		final protected int width, height, type;
+
+		public ImageClass( final int width, final int height, final int type )
+		{
+			this.width = width;
+			this.height = height;
+			this.type = type;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( this == other )
+				return true;
+			if ( !( other instanceof ImageClass ) )
+				return false;
+			final ImageClass that = ( ImageClass )other;
+			return
+					( this.width == that.width ) &&
+					( this.height == that.height ) &&
+					( this.type == that.type );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ( width * 31 + height ) * 31 + type;
+		}
+	}
+
+	/**
+	 * Maximum number of free buffers kept per size class, enough for a
+	 * few buffers per thread of a parallel export.
+	 */
+	final static public int MAX_FREE_BUFFERS = 64;
+
+	final static protected HashMap< Integer, ArrayDeque< int[] > > freeInts = new HashMap< Integer, ArrayDeque< int[] > >();
+	final static protected HashMap< ImageClass, ArrayDeque< BufferedImage > > freeImages = new HashMap< ImageClass, ArrayDeque< BufferedImage > >();
+
+	static protected long allocated = 0, reused = 0;
+
+	/**
+	 * @return an int[] of the given length with undefined contents
+	 */
+	static public int[] takeInts( final int length )
+	{
+		synchronized ( BufferPool.class )
+		{
+			final ArrayDeque< int[] > free = freeInts.get( length );
+			if ( free != null && !free.isEmpty() )
+			{
+				++reused;
+				return free.pop();
+			}
+			++allocated;
+		}
+		return new int[ length ];
+	}
+
+	synchronized static public void releaseInts( final int[] ints )
+	{
+		ArrayDeque< int[] > free = freeInts.get( ints.length );
+		if ( free == null )
+		{
+			free = new ArrayDeque< int[] >();
+			freeInts.put( ints.length, free );
+		}
+		if ( free.size() < MAX_FREE_BUFFERS )
+			free.push( ints );
+	}
+
+	/**
+	 * @return a {@link BufferedImage} of the given size and type with
+	 * 		undefined contents
+	 */
+	static public BufferedImage takeImage( final int width, final int height, final int type )
+	{
+		synchronized ( BufferPool.class )
+		{
+			final ArrayDeque< BufferedImage > free = freeImages.get( new ImageClass( width, height, type ) );
+			if ( free != null && !free.isEmpty() )
+			{
+				++reused;
+				return free.pop();
+			}
+			++allocated;
+		}
+		return new BufferedImage( width, height, type );
+	}
+
+	/**
+	 * Release an image.  Images of {@link BufferedImage#TYPE_CUSTOM} are not
+	 * pooled.
+	 */
+	synchronized static public void releaseImage( final BufferedImage image )
+	{
+		if ( image.getType() == BufferedImage.TYPE_CUSTOM )
+			return;
+		final ImageClass imageClass = new ImageClass( image.getWidth(), image.getHeight(), image.getType() );
+		ArrayDeque< BufferedImage > free = freeImages.get( imageClass );
+		if ( free == null )
+		{
+			free = new ArrayDeque< BufferedImage >();
+			freeImages.put( imageClass, free );
+		}
+		if ( free.size() < MAX_FREE_BUFFERS )
+			free.push( image );
+	}
+
+	synchronized static public long getAllocated()
+	{
+		return allocated;
+	}
+
+	synchronized static public long getReused()
+	{
+		return reused;
+	}
+
+	synchronized static public String getStatistics()
+	{
+		return "buffer pool: " + allocated + " buffers allocated, " + reused + " reused";
+	}
+}
@@ -39,12 +39,12 @@ package org.catmaid;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.PixelGrabber;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
-import java.net.URL;
-import java.util.HashMap;
-
-import javax.imageio.ImageIO;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.imglib2.AbstractInterval;
 import net.imglib2.AbstractLocalizable;
@@ -80,8 +80,17 @@ import net.imglib2.type.numeric.ARGBType;
  * <dd>CATMAID RequestTileSource (type 2)</dd>
  * <dt>"http://catmaid.org/my-data/xy/%1$d/%5$d/%8$d/%9$d.jpg"</dt>
  * <dd>CATMAID LargeDataTileSource (type 5)</dd>
+ * <dt>"file:///export/my-data/%5$d/%8$d_%9$d_%1$d.raw"</dt>
+ * <dd>tiles in the raw format (see {@link Util#readRaw(java.nio.ByteBuffer)})
+ * as exported by {@link TileCATMAID}, best read with a
+ * {@link LocalTileFetcher}</dd>
  * </dl>
  * 
+ * <p>After a tile was loaded from the source, the next tiles in the
+ * directory layout are announced to the {@link TileFetcher#readAhead(String)
+ * fetcher}.  Raw tiles are decoded directly from the fetched buffer and
+ * not kept in the encoded tier of the cache.</p>
+ * 
  * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
  */
 public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements RandomAccessibleInterval< ARGBType >
@@ -123,35 +132,21 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 		}
 	}
 	
-	class Entry
-	{
-		final protected Key key;
-		final protected int[] data;
-		
-		public Entry( final Key key, final int[] data )
-		{
-			this.key = key;
-			this.data = data;
-		}
-		
-		@Override
-		public void finalize()
-		{
-			synchronized ( cache )
-			{
-//				System.out.println( "finalizing..." );
-				cache.remove( key );
-//				System.out.println( cache.size() + " tiles chached." );
-			}
-		}
-	}
-	
 	public class CATMAIDRandomAccess extends AbstractLocalizable implements RandomAccess< ARGBType >
 	{
 		protected long r, c;
 		protected int xMod, yMod;
-		protected int[] pixels;
+		protected IntBuffer pixels;
 		final ARGBType t = new ARGBType();
+		
+		/* the last NEIGHBORHOOD_SIZE tiles visited by this access, an
+		 * interpolator moving through a 2x2x2 neighborhood across tile
+		 * borders and sections finds them here without locking the cache */
+		final protected long[] neighborR = new long[ NEIGHBORHOOD_SIZE ];
+		final protected long[] neighborC = new long[ NEIGHBORHOOD_SIZE ];
+		final protected long[] neighborZ = new long[ NEIGHBORHOOD_SIZE ];
+		final protected IntBuffer[] neighborPixels = new IntBuffer[ NEIGHBORHOOD_SIZE ];
+		protected int nextNeighbor = 0;
 
 		public CATMAIDRandomAccess()
 		{
@@ -176,9 +171,33 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 			pixels = template.pixels;
 		}
 		
+		/**
+		 * Get the pixels of tile (r, c, z) from the neighborhood of recently
+		 * visited tiles or, if not there, from the cache.
+		 */
+		protected IntBuffer fetchTile( final long r, final long c, final long z )
+		{
+			for ( int i = 0; i < NEIGHBORHOOD_SIZE; ++i )
+			{
+				if ( neighborPixels[ i ] != null && neighborR[ i ] == r && neighborC[ i ] == c && neighborZ[ i ] == z )
+					return neighborPixels[ i ];
+			}
+			final IntBuffer tilePixels = CATMAIDRandomAccessibleInterval.this.fetchPixels( r, c, z );
+			/* a failed tile is retried once the cache evicted it, which
+			 * the neighborhood would not notice */
+			if ( isFailed( r, c, z ) )
+				return tilePixels;
+			neighborR[ nextNeighbor ] = r;
+			neighborC[ nextNeighbor ] = c;
+			neighborZ[ nextNeighbor ] = z;
+			neighborPixels[ nextNeighbor ] = tilePixels;
+			nextNeighbor = ( nextNeighbor + 1 ) % NEIGHBORHOOD_SIZE;
+			return tilePixels;
+		}
+		
 		protected void fetchPixels()
 		{
-			pixels = CATMAIDRandomAccessibleInterval.this.fetchPixels( r, c, position[ 2 ] );
+			pixels = fetchTile( r, c, position[ 2 ] );
 		}
 		
 		@Override
@@ -574,7 +593,7 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 		@Override
 		public ARGBType get()
 		{
-			t.set( pixels[ tileWidth * yMod + xMod ] );
+			t.set( pixels.get( tileWidth * yMod + xMod ) );
 			return t;
 		}
 
@@ -591,13 +610,49 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 		}
 	}
 	
-	final protected HashMap< Key, SoftReference< Entry > > cache = new HashMap< CATMAIDRandomAccessibleInterval.Key, SoftReference< Entry > >();
+	/**
+	 * Number of tiles remembered by each {@link CATMAIDRandomAccess}, enough
+	 * for the 2&times;2&times;2 neighborhood of n-linear interpolation.
+	 */
+	final static public int NEIGHBORHOOD_SIZE = 8;
+	
+	final protected TileCache cache;
+	/* tiles or super-tiles being loaded, guarded by cache */
+	final protected HashSet< Key > loading = new HashSet< Key >();
+	/* tiles whose last load failed and that are black, guarded by cache */
+	final protected HashSet< Key > failed = new HashSet< Key >();
+	final protected TileFetcher fetcher;
 	final protected String urlFormat;
-	final protected long rows, cols, s;
+	final protected long rows, cols, sections, s;
+	/* tiles are in the raw format and bypass the encoded tier */
+	final protected boolean raw;
 	final protected int tileWidth, tileHeight;
 	final protected double scale;
+	final protected int superTileSize;
+	final protected AtomicLong cacheLookups = new AtomicLong();
+	final protected AtomicLong bytesFetched = new AtomicLong();
+	
+	final static protected AtomicLong totalBytesFetched = new AtomicLong();
 	
 	
+	/**
+	 * @param urlFormat
+	 * @param width of scale level 0 in pixels
+	 * @param height of scale level 0 in pixels
+	 * @param depth of scale level 0 in pixels
+	 * @param s scale level
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param superTileSize number of tiles per side of the super-tiles
+	 * 		that are requested at once, 1 requests every tile individually.
+	 * 		Only sources that render arbitrary boxes, i.e. whose
+	 * 		<code>urlFormat</code> uses x, y, width, and height like the
+	 * 		CATMAID RequestTileSource (type 2), support values &gt;1.
+	 * @param fetcher loads encoded tiles, may be shared by multiple sources
+	 * 		that access the same server
+	 * @param cache keeps decoded and encoded tiles of this source, must not
+	 * 		be shared with other sources
+	 */
 	public CATMAIDRandomAccessibleInterval(
 			final String urlFormat,
 			final long width,
@@ -605,21 +660,68 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 			final long depth,
 			final long s,
 			final int tileWidth,
-			final int tileHeight )
+			final int tileHeight,
+			final int superTileSize,
+			final TileFetcher fetcher,
+			final TileCache cache )
 	{
 		super( 3 );
 		this.urlFormat = urlFormat;
+		this.superTileSize = superTileSize;
+		this.fetcher = fetcher;
+		this.cache = cache;
 		this.tileWidth = tileWidth;
 		this.tileHeight = tileHeight;
 		this.s = s;
 		scale = 1.0 / (1 << s );
 		cols = ( long )Math.ceil( scale * width / tileWidth );
 		rows = ( long )Math.ceil( scale * height / tileHeight );
+		sections = depth;
+		raw = Util.isRaw( urlFormat );
 		max[ 0 ] = ( long )( width * scale ) - 1;
 		max[ 1 ] = ( long )( height * scale ) - 1;
 		max[ 2 ] = depth - 1;
 	}
 	
+	public CATMAIDRandomAccessibleInterval(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final int superTileSize,
+			final TileFetcher fetcher )
+	{
+		this( urlFormat, width, height, depth, s, tileWidth, tileHeight, superTileSize, fetcher, new TileCache() );
+	}
+	
+	public CATMAIDRandomAccessibleInterval(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final int superTileSize )
+	{
+		this( urlFormat, width, height, depth, s, tileWidth, tileHeight, superTileSize, new TileFetcher() );
+	}
+	
+	public CATMAIDRandomAccessibleInterval(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight )
+	{
+		this( urlFormat, width, height, depth, s, tileWidth, tileHeight, 1 );
+	}
+	
 	@Override
 	public int numDimensions()
 	{
@@ -638,8 +740,38 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 		return randomAccess();
 	}
 	
-	protected int[] fetchPixels( final long r, final long c, final long z )
+	public TileCache getCache()
 	{
+		return cache;
+	}
+	
+	/**
+	 * @return the number of tiles requested from the cache so far
+	 */
+	public long getCacheLookups()
+	{
+		return cacheLookups.get();
+	}
+	
+	/**
+	 * @return the number of encoded bytes loaded by this source so far
+	 */
+	public long getBytesFetched()
+	{
+		return bytesFetched.get();
+	}
+	
+	/**
+	 * @return the number of encoded bytes loaded by all sources so far
+	 */
+	static public long getTotalBytesFetched()
+	{
+		return totalBytesFetched.get();
+	}
+	
+	protected IntBuffer fetchPixels( final long r, final long c, final long z )
+	{
+		cacheLookups.incrementAndGet();
 		try
 		{
 			return fetchPixels2( r, c, z );
@@ -651,52 +783,355 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 		}
 	}
 		
-	protected int[] fetchPixels2( final long r, final long c, final long z )
+	/**
+	 * Decode an encoded image into ARGB pixels of the given size.
+	 */
+	static protected void decode(
+			final byte[] bytes,
+			final int width,
+			final int height,
+			final int[] pixels ) throws IOException, InterruptedException
+	{
+//		final Image image = toolkit.createImage( url );
+	    final BufferedImage jpg = Util.read( new ByteArrayInputStream( bytes ) );
+	    
+		/* This gymnastic is necessary to get reproducible gray
+		 * values, just opening a JPG or PNG, even when saved by
+		 * ImageIO, and grabbing its pixels results in gray values
+		 * with a non-matching gamma transfer function, I cannot tell
+		 * why... */
+	    final BufferedImage image = Util.draw( jpg, width, height, BufferedImage.TYPE_INT_RGB );
+	    if ( jpg != null )
+	    	BufferPool.releaseImage( jpg );
+		final PixelGrabber pg = new PixelGrabber( image, 0, 0, width, height, pixels, 0, width );
+		pg.grabPixels();
+		BufferPool.releaseImage( image );
+	}
+	
+	/**
+	 * Decode an encoded image into ARGB pixels of the given size, going
+	 * through a pooled array if pixels are not on the heap.
+	 */
+	static protected void decode(
+			final byte[] bytes,
+			final int width,
+			final int height,
+			final IntBuffer pixels ) throws IOException, InterruptedException
+	{
+		if ( pixels.hasArray() )
+			decode( bytes, width, height, pixels.array() );
+		else
+		{
+			final int[] decoded = BufferPool.takeInts( width * height );
+			try
+			{
+				decode( bytes, width, height, decoded );
+				pixels.duplicate().put( decoded );
+			}
+			finally
+			{
+				BufferPool.releaseInts( decoded );
+			}
+		}
+	}
+	
+	/**
+	 * Decode a tile in the raw format (see {@link Util#readRaw(ByteBuffer)})
+	 * into ARGB pixels of the given size.  Raw tiles are copied without
+	 * going through an image, from memory-mapped files for local sources.
+	 */
+	static protected void decodeRaw(
+			final ByteBuffer buffer,
+			final int width,
+			final int height,
+			final IntBuffer pixels ) throws IOException
+	{
+		final ByteBuffer raw = buffer.duplicate();
+		if ( raw.remaining() < Util.RAW_HEADER_SIZE )
+			throw new IOException( "Not a raw tile" );
+		final int rawWidth = raw.getInt();
+		final int rawHeight = raw.getInt();
+		final int bytesPerPixel = raw.getInt();
+		if ( ( bytesPerPixel != 1 && bytesPerPixel != 4 ) || raw.remaining() < ( long )rawWidth * rawHeight * bytesPerPixel )
+			throw new IOException( "Not a raw tile" );
+		
+		final int w = Math.min( width, rawWidth );
+		final int h = Math.min( height, rawHeight );
+		if ( w < width || h < height )
+			clear( pixels );
+		if ( bytesPerPixel == 1 )
+		{
+			final int offset = raw.position();
+			for ( int y = 0; y < h; ++y )
+			{
+				for ( int x = 0, i = offset + y * rawWidth, j = y * width; x < w; ++x, ++i, ++j )
+				{
+					final int g = raw.get( i ) & 0xff;
+					pixels.put( j, 0xff000000 | ( g << 16 ) | ( g << 8 ) | g );
+				}
+			}
+		}
+		else
+		{
+			final IntBuffer source = raw.asIntBuffer();
+			final IntBuffer target = pixels.duplicate();
+			for ( int y = 0; y < h; ++y )
+			{
+				source.limit( y * rawWidth + w ).position( y * rawWidth );
+				target.position( y * width );
+				target.put( source );
+			}
+		}
+	}
+	
+	/**
+	 * Set all pixels of a tile that is not on the heap to 0, heap tiles are
+	 * allocated cleared.
+	 */
+	static protected void clear( final IntBuffer pixels )
+	{
+		if ( !pixels.hasArray() )
+			for ( int i = 0; i < pixels.capacity(); ++i )
+				pixels.put( i, 0 );
+	}
+	
+	protected ByteBuffer fetchBuffer( final String urlString ) throws IOException
+	{
+		final ByteBuffer buffer = fetcher.fetchBuffer( urlString );
+		bytesFetched.addAndGet( buffer.remaining() );
+		totalBytesFetched.addAndGet( buffer.remaining() );
+		return buffer;
+	}
+	
+	protected String tileUrl( final long r, final long c, final long z )
+	{
+		return String.format( urlFormat, s, scale, c * tileWidth, r * tileHeight, z, tileWidth, tileHeight, r, c );
+	}
+	
+	/**
+	 * Announce the tiles that follow tile (r, c, z) in the directory
+	 * layout, the next column, row, and section, to the fetcher unless they
+	 * are cached.
+	 */
+	protected void readAhead( final long r, final long c, final long z )
+	{
+		if ( c + 1 < cols && !cache.contains( new Key( r, c + 1, z ) ) )
+			fetcher.readAhead( tileUrl( r, c + 1, z ) );
+		if ( r + 1 < rows && !cache.contains( new Key( r + 1, c, z ) ) )
+			fetcher.readAhead( tileUrl( r + 1, c, z ) );
+		if ( z + 1 < sections && !cache.contains( new Key( r, c, z + 1 ) ) )
+			fetcher.readAhead( tileUrl( r, c, z + 1 ) );
+	}
+	
+	protected byte[] fetchBytes( final String urlString ) throws IOException
+	{
+		final byte[] bytes = fetcher.fetch( urlString );
+		bytesFetched.addAndGet( bytes.length );
+		totalBytesFetched.addAndGet( bytes.length );
+		return bytes;
+	}
+	
+	/**
+	 * Get a tile from the hot tier of the cache or load it.  The cache is
+	 * not locked while loading such that tiles can be loaded concurrently.
+	 * Concurrent requests for a tile (or super-tile) that is being loaded
+	 * wait for it.
+	 */
+	protected IntBuffer fetchPixels2( final long r, final long c, final long z )
 	{
 		final Key key = new Key( r, c, z );
+		final Key loadingKey = superTileSize > 1 ?
+				new Key( r / superTileSize * superTileSize, c / superTileSize * superTileSize, z ) :
+				key;
 		synchronized ( cache )
 		{
-			final SoftReference< Entry > cachedReference = cache.get( key );
-			if ( cachedReference != null )
+			while ( true )
 			{
-				final Entry cachedEntry = cachedReference.get();
-				if ( cachedEntry != null )
-					return cachedEntry.data;
+				final IntBuffer cachedPixels = cache.getDecoded( key );
+				if ( cachedPixels != null )
+					return cachedPixels;
+				if ( !loading.contains( loadingKey ) )
+					break;
+				try
+				{
+					cache.wait();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
 			}
-			
-			final String urlString = String.format( urlFormat, s, scale, c * tileWidth, r * tileHeight, z, tileWidth, tileHeight, r, c );
+			loading.add( loadingKey );
+		}
+		
+		try
+		{
+			if ( superTileSize > 1 )
+				return loadSuperTile( r, c, z, loadingKey );
+			else
+				return loadTile( r, c, z );
+		}
+		finally
+		{
+			synchronized ( cache )
+			{
+				loading.remove( loadingKey );
+				cache.notifyAll();
+			}
+		}
+	}
+	
+	protected IntBuffer loadTile( final long r, final long c, final long z )
+	{
+		final Key key = new Key( r, c, z );
+		final String urlString = tileUrl( r, c, z );
 
-			final int[] pixels = new int[ tileWidth * tileHeight ];
-			try
+		final IntBuffer pixels = cache.allocate( tileWidth * tileHeight );
+		try
+		{
+			if ( raw )
 			{
-				final URL url = new URL( urlString );
-//				final Image image = toolkit.createImage( url );
-			    final BufferedImage jpg = ImageIO.read( url );
-			    
-				/* This gymnastic is necessary to get reproducible gray
-				 * values, just opening a JPG or PNG, even when saved by
-				 * ImageIO, and grabbing its pixels results in gray values
-				 * with a non-matching gamma transfer function, I cannot tell
-				 * why... */
-			    final BufferedImage image = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
-				image.createGraphics().drawImage( jpg, 0, 0, null );
-				final PixelGrabber pg = new PixelGrabber( image, 0, 0, tileWidth, tileHeight, pixels, 0, tileWidth );
-				pg.grabPixels();
-				
-				cache.put( key, new SoftReference< Entry >( new Entry( key, pixels ) ) );
-//				System.out.println( "success loading r=" + r + " c=" + c + " url(" + urlString + ")" );
-				
+				final ByteBuffer buffer = fetchBuffer( urlString );
+				readAhead( r, c, z );
+				final long t0 = System.nanoTime();
+				decodeRaw( buffer, tileWidth, tileHeight, pixels );
+				cache.recordDecode( false, System.nanoTime() - t0 );
 			}
-			catch (final IOException e)
+			else
 			{
-				System.out.println( "failed loading r=" + r + " c=" + c + " url(" + urlString + ")" );
-				cache.put( key, new SoftReference< Entry >( new Entry( key, pixels ) ) );
+				byte[] bytes = cache.getEncoded( key );
+				final boolean fromCold = bytes != null;
+				if ( !fromCold )
+				{
+					bytes = fetchBytes( urlString );
+					cache.putEncoded( key, bytes );
+					readAhead( r, c, z );
+				}
+				final long t0 = System.nanoTime();
+				decode( bytes, tileWidth, tileHeight, pixels );
+				cache.recordDecode( fromCold, System.nanoTime() - t0 );
 			}
-			catch (final InterruptedException e)
+			
+			cache.putDecoded( key, pixels );
+			setFailed( key, false );
+//			System.out.println( "success loading r=" + r + " c=" + c + " url(" + urlString + ")" );
+			
+		}
+		catch (final IOException e)
+		{
+			System.out.println( "failed loading r=" + r + " c=" + c + " url(" + urlString + ")" );
+			clear( pixels );
+			cache.putDecoded( key, pixels );
+			setFailed( key, true );
+		}
+		catch (final InterruptedException e)
+		{
+			e.printStackTrace();
+			clear( pixels );
+			setFailed( key, true );
+		}
+		return pixels;
+	}
+	
+	/**
+	 * Load the aligned super-tile of superTileSize&times;superTileSize tiles
+	 * that contains tile (r, c, z) with a single request, and cache all of
+	 * its tiles.  The encoded super-tile is kept in the cold tier under
+	 * superKey, the key of its first tile.
+	 * 
+	 * @return the pixels of tile (r, c, z)
+	 */
+	protected IntBuffer loadSuperTile( final long r, final long c, final long z, final Key superKey )
+	{
+		final long superR = r / superTileSize;
+		final long superC = c / superTileSize;
+		final long r0 = superR * superTileSize;
+		final long c0 = superC * superTileSize;
+		final int superWidth = superTileSize * tileWidth;
+		final int superHeight = superTileSize * tileHeight;
+		
+		final String urlString = String.format( urlFormat, s, scale, c0 * tileWidth, r0 * tileHeight, z, superWidth, superHeight, superR, superC );
+		
+		IntBuffer pixels = null;
+		try
+		{
+			byte[] bytes = cache.getEncoded( superKey );
+			final boolean fromCold = bytes != null;
+			if ( !fromCold )
 			{
-				e.printStackTrace();
+				bytes = fetchBytes( urlString );
+				cache.putEncoded( superKey, bytes );
 			}
-			return pixels;
+			final long t0 = System.nanoTime();
+			final int[] superPixels = BufferPool.takeInts( superWidth * superHeight );
+			try
+			{
+				decode( bytes, superWidth, superHeight, superPixels );
+				cache.recordDecode( fromCold, System.nanoTime() - t0 );
+				
+				for ( int dr = 0; dr < superTileSize && r0 + dr < rows; ++dr )
+				{
+					for ( int dc = 0; dc < superTileSize && c0 + dc < cols; ++dc )
+					{
+						final IntBuffer tilePixels = cache.allocate( tileWidth * tileHeight );
+						final IntBuffer target = tilePixels.duplicate();
+						for ( int y = 0, i = dr * tileHeight * superWidth + dc * tileWidth; y < tileHeight; ++y, i += superWidth )
+							target.put( superPixels, i, tileWidth );
+					
+						final Key key = new Key( r0 + dr, c0 + dc, z );
+						cache.putDecoded( key, tilePixels );
+						setFailed( key, false );
+						if ( r0 + dr == r && c0 + dc == c )
+							pixels = tilePixels;
+					}
+				}
+			}
+			finally
+			{
+				BufferPool.releaseInts( superPixels );
+			}
+		}
+		catch (final IOException e)
+		{
+			System.out.println( "failed loading r=" + r + " c=" + c + " url(" + urlString + ")" );
+			pixels = cache.allocate( tileWidth * tileHeight );
+			clear( pixels );
+			cache.putDecoded( new Key( r, c, z ), pixels );
+			setFailed( new Key( r, c, z ), true );
+		}
+		catch (final InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+		if ( pixels == null )
+		{
+			pixels = cache.allocate( tileWidth * tileHeight );
+			clear( pixels );
+			setFailed( new Key( r, c, z ), true );
+		}
+		return pixels;
+	}
+	
+	protected void setFailed( final Key key, final boolean isFailed )
+	{
+		synchronized ( cache )
+		{
+			if ( isFailed )
+				failed.add( key );
+			else
+				failed.remove( key );
+		}
+	}
+	
+	/**
+	 * @return true if the last load of tile (r, c, z) failed
+	 */
+	protected boolean isFailed( final long r, final long c, final long z )
+	{
+		synchronized ( cache )
+		{
+			return failed.contains( new Key( r, c, z ) );
 		}
 	}
 }
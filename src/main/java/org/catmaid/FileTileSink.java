@@ -0,0 +1,73 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link TileSink} that stores every tile in its own file, the CATMAID
+ * tile layout.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class FileTileSink implements TileSink
+{
+	@Override
+	public void write( final File file, final byte[] bytes ) throws IOException
+	{
+		Util.mkdirs( file.getParentFile() );
+		final FileOutputStream out = new FileOutputStream( file );
+		try
+		{
+			out.write( bytes );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	@Override
+	public byte[] read( final File file ) throws IOException
+	{
+		if ( !file.exists() )
+			return null;
+		final FileInputStream in = new FileInputStream( file );
+		try
+		{
+			final byte[] bytes = new byte[ ( int )file.length() ];
+			for ( int n = 0; n < bytes.length; )
+			{
+				final int r = in.read( bytes, n, bytes.length - n );
+				if ( r < 0 )
+					throw new IOException( "unexpected end of " + file );
+				n += r;
+			}
+			return bytes;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	@Override
+	public void close() {}
+}
@@ -17,7 +17,11 @@
 package org.catmaid;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import net.imglib2.Cursor;
 import net.imglib2.Interval;
@@ -26,7 +30,15 @@ import net.imglib2.converter.Converter;
 import net.imglib2.converter.TypeIdentity;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.SubsampleIntervalView;
 import net.imglib2.view.Views;
 
@@ -37,12 +49,14 @@ import net.imglib2.view.Views;
  */
 public class GenericDownsampler< T extends NumericType< T >, A extends NumericType< A > > implements Callable< RandomAccessibleInterval< T > >
 {
+	final protected RandomAccessibleInterval< T > uncroppedSource;
 	final protected RandomAccessibleInterval< T > source;
 	final protected RandomAccessibleInterval< T > target;
 	final protected A accumulator, variable;
 	final protected Converter< A, T > at;
 	final protected Converter< T, A > ta;
 	final protected long[] sizeMinusOne;
+	final protected int[] factors;
 	final protected double div;
 	
 	final static protected long[] sizeMinusOne( final Interval source )
@@ -77,22 +91,100 @@ public class GenericDownsampler< T extends NumericType< T >, A extends NumericTy
 		return s;
 	}
 	
+	/**
+	 * @return the largest size not larger than source that is divisible by
+	 * 		factors in all dimensions
+	 */
+	final static protected long[] croppedSize( final Interval source, final int[] factors )
+	{
+		final long[] s = new long[ source.numDimensions() ];
+		for ( int d = 0; d < s.length; ++d )
+			s[ d ] = source.dimension( d ) / factors[ d ] * factors[ d ];
+		return s;
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if factors does not have one factor
+	 * 		&ge; 1 per dimension of source
+	 */
+	final static protected void checkFactors( final Interval source, final int[] factors )
+	{
+		if ( factors.length != source.numDimensions() )
+			throw new IllegalArgumentException( "expected " + source.numDimensions() + " factors but got " + factors.length );
+		for ( final int f : factors )
+			if ( f < 1 )
+				throw new IllegalArgumentException( "factors must be at least 1 but are " + Arrays.toString( factors ) );
+	}
+	
+	/**
+	 * @return the size of source downsampled by factors
+	 */
+	final static protected long[] scaledSize( final Interval source, final int[] factors )
+	{
+		checkFactors( source, factors );
+		final long[] s = new long[ source.numDimensions() ];
+		for ( int d = 0; d < s.length; ++d )
+			s[ d ] = source.dimension( d ) / factors[ d ];
+		return s;
+	}
+	
+	/**
+	 * @return factors of 2 for all n dimensions
+	 */
+	final static protected int[] twos( final int n )
+	{
+		final int[] f = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+			f[ d ] = 2;
+		return f;
+	}
+	
+	/**
+	 * @param source
+	 * @param target of size source / factors
+	 * @param factors integer downsampling factor per dimension, e.g.
+	 * 		(4,4,1) to downsample 4&times; in <em>x,y</em> but not in
+	 * 		<em>z</em>
+	 * @param accumulator
+	 * @param at
+	 * @param ta
+	 * @throws IllegalArgumentException if factors does not have one factor
+	 * 		&ge; 1 per dimension of source
+	 */
 	public GenericDownsampler(
 			final RandomAccessibleInterval< T > source,
 			final RandomAccessibleInterval< T > target,
+			final int[] factors,
 			final A accumulator,
 			final Converter< A, T > at,
 			final Converter< T, A > ta )
 	{
-		this.source = Views.offsetInterval( source, new long[ source.numDimensions() ], evenSize( source ) );
+		checkFactors( source, factors );
+		
+		uncroppedSource = source;
+		this.source = Views.offsetInterval( source, new long[ source.numDimensions() ], croppedSize( source, factors ) );
 		this.target = target;
+		this.factors = factors.clone();
 		this.accumulator = accumulator;
 		variable = accumulator.createVariable();
 		this.at = at;
 		this.ta = ta;
 		
-		sizeMinusOne = sizeMinusOne( source );
-		div = 1.0 / ( 1L << sizeMinusOne.length );
+		sizeMinusOne = sizeMinusOne( this.source );
+		long n = 1;
+		for ( final int f : factors )
+			n *= f;
+		div = 1.0 / n;
+	}
+	
+	public GenericDownsampler(
+			final RandomAccessibleInterval< T > source,
+			final RandomAccessibleInterval< T > target,
+			final A accumulator,
+			final Converter< A, T > at,
+			final Converter< T, A > ta )
+	{
+		this( source, target, twos( source.numDimensions() ), accumulator, at, ta );
 	}
 	
 	public GenericDownsampler(
@@ -125,6 +217,43 @@ public class GenericDownsampler< T extends NumericType< T >, A extends NumericTy
 	}
 	
 	
+	static public < T extends NumericType< T > > GenericDownsampler< T, T > create(
+			final RandomAccessibleInterval< T > source,
+			final RandomAccessibleInterval< T > target,
+			final int[] factors )
+	{
+		final TypeIdentity< T > atta = new TypeIdentity< T >();
+		return new GenericDownsampler< T, T >(
+				source,
+				target,
+				factors,
+				source.randomAccess().get().createVariable(),
+				atta,
+				atta );
+	}
+	
+	
+	static public < T extends NumericType< T > > GenericDownsampler< T, T > create(
+			final RandomAccessibleInterval< T > source,
+			final ImgFactory< T > targetFactory,
+			final int[] factors )
+	{
+		final T firstElement = source.randomAccess().get();
+		return create(
+				source,
+				targetFactory.create( scaledSize( source, factors ), firstElement.createVariable() ),
+				factors );
+	}
+	
+	
+	static public < T extends NumericType< T > > GenericDownsampler< T, T > create(
+			final Img< T > source,
+			final int[] factors )
+	{
+		return create( source, source.factory(), factors );
+	}
+	
+	
 	static public < T extends NumericType< T > > GenericDownsampler< T, T > create(
 			final RandomAccessibleInterval< T > source,
 			final RandomAccessibleInterval< T > target )
@@ -167,7 +296,76 @@ public class GenericDownsampler< T extends NumericType< T >, A extends NumericTy
 	}
 	
 	
-	protected void average( final ArrayList< Cursor< T > > cursors )
+	/**
+	 * Average with a long accumulator and round half up.  Used for
+	 * {@link IntegerType IntegerTypes} that are their own accumulator, where
+	 * summing in the type itself would overflow.
+	 */
+	protected void averageIntegers( final ArrayList< Cursor< T > > cursors )
+	{
+		final long count = cursors.size();
+		final long half = count / 2;
+		final Cursor< T > targetCursor = Views.flatIterable( target ).cursor();
+		while ( targetCursor.hasNext() )
+		{
+			long sum = half;
+			for ( final Cursor< T > c : cursors )
+				sum += ( ( IntegerType< ? > )c.next() ).getIntegerLong();
+			/* floor division, sums of signed types may be negative */
+			final long average = sum >= 0 ? sum / count : -( ( count - 1 - sum ) / count );
+			( ( IntegerType< ? > )targetCursor.next() ).setInteger( average );
+		}
+	}
+	
+	
+	/**
+	 * Average with a double accumulator.  Used for {@link RealType RealTypes}
+	 * that are their own accumulator.
+	 */
+	protected void averageReals( final ArrayList< Cursor< T > > cursors )
+	{
+		final Cursor< T > targetCursor = Views.flatIterable( target ).cursor();
+		while ( targetCursor.hasNext() )
+		{
+			double sum = 0;
+			for ( final Cursor< T > c : cursors )
+				sum += ( ( RealType< ? > )c.next() ).getRealDouble();
+			( ( RealType< ? > )targetCursor.next() ).setReal( sum * div );
+		}
+	}
+	
+	
+	/**
+	 * Average packed {@link ARGBType ARGBTypes} per channel, rounding down
+	 * as {@link Downsampler} does for RGB tiles.  The arithmetic of
+	 * ARGBType wraps channel sums around, such that it cannot be its own
+	 * accumulator.
+	 */
+	protected void averageARGB( final ArrayList< Cursor< T > > cursors )
+	{
+		final long count = cursors.size();
+		final Cursor< T > targetCursor = Views.flatIterable( target ).cursor();
+		while ( targetCursor.hasNext() )
+		{
+			long a = 0, r = 0, g = 0, b = 0;
+			for ( final Cursor< T > c : cursors )
+			{
+				final int argb = ( ( ARGBType )c.next() ).get();
+				a += argb >>> 24;
+				r += ( argb >> 16 ) & 0xff;
+				g += ( argb >> 8 ) & 0xff;
+				b += argb & 0xff;
+			}
+			( ( ARGBType )targetCursor.next() ).set(
+					ARGBType.rgba( ( int )( r / count ), ( int )( g / count ), ( int )( b / count ), ( int )( a / count ) ) );
+		}
+	}
+	
+	
+	/**
+	 * Average through the accumulator and converters.
+	 */
+	protected void averageNumeric( final ArrayList< Cursor< T > > cursors )
 	{
 		final Cursor< T > targetCursor = Views.flatIterable( target ).cursor();
 		while ( targetCursor.hasNext() )
@@ -184,41 +382,209 @@ public class GenericDownsampler< T extends NumericType< T >, A extends NumericTy
 	}
 	
 	
+	/**
+	 * @return true if the type is its own accumulator, i.e. both converters
+	 * 		are {@link TypeIdentity TypeIdentities}
+	 */
+	protected boolean isIdentity()
+	{
+		return at instanceof TypeIdentity && ta instanceof TypeIdentity;
+	}
+	
+	
+	/**
+	 * Average the pixels of all cursors into the target.  If the type is its
+	 * own accumulator (as created by the <code>create</code> factories),
+	 * {@link IntegerType IntegerTypes} and {@link RealType RealTypes} are
+	 * summed in a primitive long or double respectively, {@link ARGBType
+	 * ARGBTypes} per channel.  All other types, and custom accumulators, use
+	 * {@link #averageNumeric(ArrayList)}.
+	 */
+	protected void average( final ArrayList< Cursor< T > > cursors )
+	{
+		if ( isIdentity() )
+		{
+			final T t = source.randomAccess().get();
+			if ( t instanceof IntegerType )
+			{
+				averageIntegers( cursors );
+				return;
+			}
+			else if ( t instanceof RealType )
+			{
+				averageReals( cursors );
+				return;
+			}
+			else if ( t instanceof ARGBType )
+			{
+				averageARGB( cursors );
+				return;
+			}
+		}
+		averageNumeric( cursors );
+	}
+	
+	
+	/**
+	 * Create one cursor per pixel of the neighborhood of
+	 * <code>factors[0] &times; &hellip; &times; factors[n-1]</code> source
+	 * pixels that is averaged into one target pixel, all iterating in flat
+	 * order.
+	 */
+	protected ArrayList< Cursor< T > > cursors()
+	{
+		final int n = factors.length;
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final long[] steps = new long[ n ];
+		int k = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			steps[ d ] = factors[ d ];
+			k *= factors[ d ];
+		}
+		final ArrayList< Cursor< T > > cursors = new ArrayList< Cursor< T > >( k );
+		
+		/* one shifted view per offset in the neighborhood, dimension 0 fastest */
+		for ( int i = 0; i < k; ++i )
+		{
+			for ( int d = 0, j = i; d < n; ++d )
+			{
+				min[ d ] = j % factors[ d ];
+				max[ d ] = min[ d ] + sizeMinusOne[ d ];
+				j /= factors[ d ];
+			}
+			final SubsampleIntervalView< T > v =
+					new SubsampleIntervalView< T >( Views.interval( source, min, max ), steps );
+			cursors.add( Views.flatIterable( v ).cursor() );
+		}
+		
+		return cursors;
+	}
+	
+	
+	/**
+	 * Downsample.  {@link ArrayImg ArrayImgs} and {@link PlanarImg PlanarImgs}
+	 * of {@link UnsignedByteType}, {@link UnsignedShortType}, and
+	 * {@link FloatType} are processed on their backing arrays by
+	 * {@link ArrayDownsampler} if the type is its own accumulator,
+	 * everything else through cursors by {@link #average(ArrayList)}.
+	 */
 	public RandomAccessibleInterval< T > call() throws Exception
 	{
-		final long[] min = new long[ sizeMinusOne.length ];
-		final long[] max = new long[ sizeMinusOne.length ];
-		final ArrayList< RandomAccessibleInterval< T > > views = new ArrayList< RandomAccessibleInterval< T > >( 1 << sizeMinusOne.length );
-		final ArrayList< Cursor< T > > cursors = new ArrayList< Cursor< T > >( views.size() );
+		if ( !( isIdentity() && ArrayDownsampler.downsample( uncroppedSource, target, factors ) ) )
+			average( cursors() );
+		
+		return target;
+	}
+	
+	
+	/**
+	 * Downsample with the target split into <code>numChunks</code> chunks
+	 * along its slowest (last) dimension that are processed in parallel by
+	 * <code>service</code>.  Each chunk reads only the corresponding slab of
+	 * the source and uses its own cursors and accumulator.  Converters are
+	 * shared between chunks and must therefore be stateless.
+	 * 
+	 * @param service
+	 * @param numChunks at least 1
+	 * @return the target
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 * @throws IllegalArgumentException if numChunks &lt; 1
+	 */
+	public RandomAccessibleInterval< T > call(
+			final ExecutorService service,
+			final int numChunks ) throws InterruptedException, ExecutionException
+	{
+		if ( numChunks < 1 )
+			throw new IllegalArgumentException( "numChunks must be at least 1 but is " + numChunks );
 		
-		views.add( Views.interval( source, min, sizeMinusOne ) );
+		final int n = target.numDimensions();
+		final long size = target.dimension( n - 1 );
+		final long chunkSize = Math.max( 1, ( size + numChunks - 1 ) / numChunks );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 		
-		/* shift */
-		for ( int d = 0; d < sizeMinusOne.length; ++d )
+		/* rows are null for array images whose access is not an array */
+		final boolean supported = isIdentity() && ArrayDownsampler.isSupported( uncroppedSource, target, factors ) && n > 1;
+		final ArrayDownsampler.Rows sourceRows = supported ? ArrayDownsampler.rows( uncroppedSource ) : null;
+		final ArrayDownsampler.Rows targetRows = supported ? ArrayDownsampler.rows( target ) : null;
+		if ( sourceRows != null && targetRows != null )
 		{
-			final int l = views.size();
-			for ( int e = 0; e < l; ++e )
+			final long rowsPerSlice = targetRows.numRows() / size;
+			for ( long min = 0; min < size; min += chunkSize )
 			{
-				final RandomAccessibleInterval< T > view = views.get( e ); 
-				view.min( min );
-				view.max( max );
-				min[ d ] = 1;
-				max[ d ] += 1;
-				views.add( Views.interval( source, min, max ) );
+				final long minRow = min * rowsPerSlice;
+				final long maxRow = Math.min( size, min + chunkSize ) * rowsPerSlice;
+				tasks.add(
+						new Callable< Void >()
+						{
+							@Override
+							public Void call()
+							{
+								ArrayDownsampler.downsample( sourceRows, targetRows, factors, minRow, maxRow );
+								return null;
+							}
+						} );
 			}
 		}
-		
-		/* downsample and cursors */
-		for ( int d = 0; d < views.size(); ++d )
+		else
 		{
-			final SubsampleIntervalView< T > v = Views.subsample( views.get( d ), 2 );
-			views.set( d, v );
-			cursors.add(  Views.flatIterable( v ).cursor() );
+			final long[] sourceMin = new long[ n ];
+			final long[] sourceSize = new long[ n ];
+			final long[] targetMin = new long[ n ];
+			final long[] targetMax = new long[ n ];
+			source.dimensions( sourceSize );
+			target.min( targetMin );
+			target.max( targetMax );
+			
+			for ( long min = 0; min < size; min += chunkSize )
+			{
+				final long max = Math.min( size, min + chunkSize ) - 1;
+				
+				sourceMin[ n - 1 ] = factors[ n - 1 ] * min;
+				sourceSize[ n - 1 ] = factors[ n - 1 ] * ( max - min + 1 );
+				targetMin[ n - 1 ] = target.min( n - 1 ) + min;
+				targetMax[ n - 1 ] = target.min( n - 1 ) + max;
+				
+				final GenericDownsampler< T, A > chunk = new GenericDownsampler< T, A >(
+						Views.offsetInterval( source, sourceMin, sourceSize ),
+						Views.interval( target, targetMin, targetMax ),
+						factors,
+						accumulator.createVariable(),
+						at,
+						ta );
+				tasks.add(
+						new Callable< Void >()
+						{
+							@Override
+							public Void call()
+							{
+								chunk.average( chunk.cursors() );
+								return null;
+							}
+						} );
+			}
 		}
 		
-		/* average */
-		average( cursors );
+		for ( final Future< Void > future : service.invokeAll( tasks ) )
+			future.get();
 		
 		return target;
 	}
+	
+	
+	/**
+	 * Downsample in parallel with four chunks per available processor to
+	 * balance uneven progress of the chunks.
+	 * 
+	 * @param service
+	 * @return the target
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public RandomAccessibleInterval< T > call( final ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		return call( service, 4 * Runtime.getRuntime().availableProcessors() );
+	}
 }
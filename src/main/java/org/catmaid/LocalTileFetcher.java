@@ -0,0 +1,261 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads tiles from the local file system, e.g. an earlier export, through
+ * NIO channels instead of {@link java.net.URL} streams.  Tiles in the raw
+ * format (see {@link Util#readRaw(ByteBuffer)}) are memory-mapped and not
+ * copied to the heap.
+ *
+ * <p>Tiles that are {@link #readAhead(String) announced} are read in the
+ * background by up to <code>numThreads</code> threads, such that the
+ * files of the next tiles in the directory layout are in memory when they
+ * are requested.  At most <code>readAheadSize</code> tiles are kept
+ * waiting to be fetched, the oldest are dropped.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class LocalTileFetcher extends TileFetcher
+{
+	final protected int readAheadSize;
+	final protected ExecutorService readAheadService;
+
+	/* tiles read ahead in order of announcement, guarded by itself */
+	final protected LinkedHashMap< String, Future< ByteBuffer > > readAheads =
+			new LinkedHashMap< String, Future< ByteBuffer > >();
+
+	protected long numReadAheads = 0, numReadAheadHits = 0;
+
+	/**
+	 * @param readAheadSize maximum number of tiles read ahead, 0 disables
+	 * 		read-ahead
+	 * @param numThreads number of threads reading ahead
+	 */
+	public LocalTileFetcher( final int readAheadSize, final int numThreads )
+	{
+		this.readAheadSize = readAheadSize;
+		if ( readAheadSize > 0 )
+			readAheadService = Executors.newFixedThreadPool(
+					Math.max( 1, numThreads ),
+					new ThreadFactory()
+					{
+						@Override
+						public Thread newThread( final Runnable runnable )
+						{
+							final Thread thread = new Thread( runnable );
+							thread.setDaemon( true );
+							return thread;
+						}
+					} );
+		else
+			readAheadService = null;
+	}
+
+	public LocalTileFetcher()
+	{
+		this( 0, 1 );
+	}
+
+	/**
+	 * @return true if urlFormat addresses local files, i.e. is a file: URL
+	 * 		or a path
+	 */
+	static public boolean isLocal( final String urlFormat )
+	{
+		return urlFormat.startsWith( "file:" ) || !urlFormat.matches( "^[a-zA-Z][a-zA-Z0-9+.-]*://.*" );
+	}
+
+	/**
+	 * @return the file addressed by a file: URL or path
+	 */
+	static public File file( final String urlString ) throws IOException
+	{
+		if ( !urlString.startsWith( "file:" ) )
+			return new File( urlString );
+		try
+		{
+			return new File( new URI( urlString.replace( " ", "%20" ) ) );
+		}
+		catch ( final URISyntaxException e )
+		{
+			throw new IOException( "Invalid file URL " + urlString );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			throw new IOException( "Invalid file URL " + urlString );
+		}
+	}
+
+	/**
+	 * Read a file completely, raw tiles are mapped and
+	 * {@link MappedByteBuffer#load() loaded}.
+	 */
+	static protected ByteBuffer read( final File file, final boolean map ) throws IOException
+	{
+		if ( map )
+			return Util.map( file ).load();
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			if ( size > Integer.MAX_VALUE )
+				throw new IOException( "File too large " + file );
+			final ByteBuffer buffer = ByteBuffer.allocate( ( int )size );
+			while ( buffer.hasRemaining() && channel.read( buffer ) >= 0 );
+			buffer.flip();
+			return buffer;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the tile read ahead for urlString or null
+	 */
+	protected ByteBuffer takeReadAhead( final String urlString ) throws IOException
+	{
+		final Future< ByteBuffer > future;
+		synchronized ( readAheads )
+		{
+			future = readAheads.remove( urlString );
+			if ( future == null )
+				return null;
+			++numReadAheadHits;
+		}
+		try
+		{
+			return future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "interrupted loading " + urlString );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException )e.getCause();
+			throw new IOException( e.getCause() );
+		}
+	}
+
+	@Override
+	public ByteBuffer fetchBuffer( final String urlString ) throws IOException
+	{
+		final ByteBuffer buffer = takeReadAhead( urlString );
+		if ( buffer != null )
+			return buffer;
+		return read( file( urlString ), Util.isRaw( urlString ) );
+	}
+
+	@Override
+	public byte[] fetch( final String urlString ) throws IOException
+	{
+		final ByteBuffer buffer = fetchBuffer( urlString );
+		if ( buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.remaining() == buffer.array().length )
+			return buffer.array();
+		final byte[] bytes = new byte[ buffer.remaining() ];
+		buffer.duplicate().get( bytes );
+		return bytes;
+	}
+
+	@Override
+	public void readAhead( final String urlString )
+	{
+		if ( readAheadService == null )
+			return;
+		synchronized ( readAheads )
+		{
+			if ( readAheads.containsKey( urlString ) )
+				return;
+			for ( final Iterator< Map.Entry< String, Future< ByteBuffer > > > i = readAheads.entrySet().iterator(); readAheads.size() >= readAheadSize && i.hasNext(); )
+			{
+				i.next().getValue().cancel( false );
+				i.remove();
+			}
+			++numReadAheads;
+			readAheads.put(
+					urlString,
+					readAheadService.submit(
+							new Callable< ByteBuffer >()
+							{
+								@Override
+								public ByteBuffer call() throws IOException
+								{
+									return read( file( urlString ), Util.isRaw( urlString ) );
+								}
+							} ) );
+		}
+	}
+
+	/**
+	 * @return the number of tiles read ahead so far
+	 */
+	public long getReadAheads()
+	{
+		synchronized ( readAheads )
+		{
+			return numReadAheads;
+		}
+	}
+
+	/**
+	 * @return the number of tiles fetched that were read ahead
+	 */
+	public long getReadAheadHits()
+	{
+		synchronized ( readAheads )
+		{
+			return numReadAheadHits;
+		}
+	}
+
+	/**
+	 * Stop reading ahead.
+	 */
+	public void close()
+	{
+		if ( readAheadService != null )
+			readAheadService.shutdownNow();
+		synchronized ( readAheads )
+		{
+			readAheads.clear();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.view.Views;
+
+/**
+ * {@link BlockDownsampler.BlockSink} that writes the blocks of a
+ * {@link BlockDownsampler} to a dataset of an {@link N5Volume} with the
+ * same dimensions and block size.  uint8 datasets store the blue channel
+ * of gray pixels, uint32 datasets the RGB channels.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class N5BlockSink implements BlockDownsampler.BlockSink< ARGBType >
+{
+	final protected N5Volume volume;
+	final protected N5Volume.Dataset dataset;
+
+	public N5BlockSink( final N5Volume volume, final N5Volume.Dataset dataset )
+	{
+		this.volume = volume;
+		this.dataset = dataset;
+	}
+
+	@Override
+	public void write( final long[] gridPosition, final RandomAccessibleInterval< ARGBType > block ) throws IOException
+	{
+		final int[] size = dataset.blockSize( gridPosition );
+		for ( int d = 0; d < size.length; ++d )
+			if ( block.dimension( d ) != size[ d ] )
+				throw new IOException( "block " + Arrays.toString( gridPosition ) + " has size " + block.dimension( d ) + " instead of " + size[ d ] + " in dimension " + d );
+
+		final Cursor< ARGBType > cursor = Views.flatIterable( block ).cursor();
+		if ( dataset.isRGB() )
+		{
+			final int[] pixels = new int[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+			for ( int i = 0; i < pixels.length; ++i )
+				pixels[ i ] = cursor.next().get() & 0xffffff;
+			volume.writeBlock( dataset, gridPosition, pixels );
+		}
+		else
+		{
+			final byte[] pixels = new byte[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+			for ( int i = 0; i < pixels.length; ++i )
+				pixels[ i ] = ( byte )cursor.next().get();
+			volume.writeBlock( dataset, gridPosition, pixels );
+		}
+	}
+}
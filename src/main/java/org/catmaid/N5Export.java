@@ -0,0 +1,267 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects the export tiles of a {@link Tiler} into the blocks of an
+ * {@link N5Volume} dataset.  Blocks have the size of an export tile in
+ * <em>x,y</em> and blockDepth sections in <em>z</em>.  A block is written
+ * by the thread that delivers its last section, such that blocks are
+ * written in parallel when tiles are exported in parallel.
+ *
+ * <p>The sections of a block are collected in a part file next to the
+ * block file instead of the heap, because all blocks of blockDepth sections
+ * are pending at the same time when sections are exported one after the
+ * other, e.g. 25GB for 64 gray sections of 20000&times;20000 pixels.</p>
+ *
+ * <p>Blocks that are incomplete when the export is {@link #close() closed},
+ * because the exported <em>z</em>-range does not cover them, are merged
+ * with the existing block.  Concurrent exports must therefore not share
+ * blocks, i.e. their <em>z</em>-ranges must be aligned to blockDepth.</p>
+ */
+public class N5Export
+{
+	final static public String PART_SUFFIX = ".part";
+
+	static protected class Block
+	{
+		final protected long[] gridPosition;
+		final protected int[] size;
+		/* big-endian pixels of the sections written so far */
+		final protected File part;
+		final protected boolean[] written;
+		protected int numWritten = 0;
+
+		public Block( final long[] gridPosition, final int[] size, final File part )
+		{
+			this.gridPosition = gridPosition;
+			this.size = size;
+			this.part = part;
+			written = new boolean[ size[ 2 ] ];
+		}
+	}
+
+	final protected N5Volume volume;
+	final protected N5Volume.Dataset dataset;
+
+	/* guarded by itself */
+	final protected HashMap< List< Long >, Block > pending = new HashMap< List< Long >, Block >();
+
+	/**
+	 * @param volume
+	 * @param datasetName
+	 * @param dimensions of the export in export orientation
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param blockDepth number of sections per block
+	 * @param type the type of export tiles, {@link BufferedImage#TYPE_BYTE_GRAY}
+	 * 		tiles are stored as uint8, {@link BufferedImage#TYPE_INT_RGB} as
+	 * 		uint32
+	 * @param compression "raw" or "gzip"
+	 */
+	public N5Export(
+			final N5Volume volume,
+			final String datasetName,
+			final long[] dimensions,
+			final int tileWidth,
+			final int tileHeight,
+			final int blockDepth,
+			final int type,
+			final String compression ) throws IOException
+	{
+		this.volume = volume;
+		dataset = volume.createDataset(
+				datasetName,
+				dimensions,
+				new int[]{ tileWidth, tileHeight, blockDepth },
+				type == BufferedImage.TYPE_BYTE_GRAY ? "uint8" : "uint32",
+				compression,
+				new long[]{ 1, 1, 1 } );
+	}
+
+	public N5Volume.Dataset getDataset()
+	{
+		return dataset;
+	}
+
+	/**
+	 * Add an export tile.
+	 *
+	 * @param z section index in the export
+	 * @param r tile row
+	 * @param c tile column
+	 * @param img the export tile, {@link BufferedImage#TYPE_BYTE_GRAY} or
+	 * 		{@link BufferedImage#TYPE_INT_RGB} as created by
+	 * 		{@link Util#draw(java.awt.Image, int)} or
+	 * 		{@link Util#wrapRGB(int[], int, int)}
+	 */
+	public void write( final long z, final long r, final long c, final BufferedImage img ) throws IOException
+	{
+		final long[] gridPosition = new long[]{ c, r, z / dataset.blockSize[ 2 ] };
+		final int slice = ( int )( z % dataset.blockSize[ 2 ] );
+		final List< Long > key = Arrays.asList( gridPosition[ 0 ], gridPosition[ 1 ], gridPosition[ 2 ] );
+		final Block block;
+		synchronized ( pending )
+		{
+			Block b = pending.get( key );
+			if ( b == null )
+			{
+				final File file = dataset.blockFile( gridPosition );
+				b = new Block( gridPosition, dataset.blockSize( gridPosition ), new File( file.getParentFile(), file.getName() + PART_SUFFIX ) );
+				/* left over by an export that did not finish */
+				b.part.delete();
+				pending.put( key, b );
+			}
+			block = b;
+		}
+
+		final int width = img.getWidth();
+		final int[] size = block.size;
+		final ByteBuffer buffer = ByteBuffer.allocate( bytesPerPixel() * size[ 0 ] * size[ 1 ] );
+		if ( dataset.isRGB() )
+		{
+			final int[] pixels = ( ( DataBufferInt )img.getRaster().getDataBuffer() ).getData();
+			final IntBuffer ints = buffer.asIntBuffer();
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				for ( int x = 0, i = y * width; x < size[ 0 ]; ++x, ++i )
+					ints.put( pixels[ i ] & 0xffffff );
+		}
+		else
+		{
+			final byte[] pixels = ( ( DataBufferByte )img.getRaster().getDataBuffer() ).getData();
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				buffer.put( pixels, y * width, size[ 0 ] );
+			buffer.rewind();
+		}
+
+		final boolean complete;
+		synchronized ( block )
+		{
+			Util.mkdirs( block.part.getParentFile() );
+			final RandomAccessFile raf = new RandomAccessFile( block.part, "rw" );
+			try
+			{
+				final FileChannel channel = raf.getChannel();
+				for ( long position = ( long )slice * buffer.capacity(); buffer.hasRemaining(); )
+					position += channel.write( buffer, position );
+			}
+			finally
+			{
+				raf.close();
+			}
+			if ( !block.written[ slice ] )
+			{
+				block.written[ slice ] = true;
+				++block.numWritten;
+			}
+			complete = block.numWritten == size[ 2 ];
+		}
+
+		if ( complete )
+		{
+			synchronized ( pending )
+			{
+				pending.remove( key );
+			}
+			writeBlock( block, readPart( block ) );
+		}
+	}
+
+	protected int bytesPerPixel()
+	{
+		return dataset.isRGB() ? 4 : 1;
+	}
+
+	/**
+	 * @return the pixels of the sections written so far, sections not
+	 * 		written are black
+	 */
+	protected byte[] readPart( final Block block ) throws IOException
+	{
+		final byte[] bytes = new byte[ bytesPerPixel() * block.size[ 0 ] * block.size[ 1 ] * block.size[ 2 ] ];
+		final RandomAccessFile raf = new RandomAccessFile( block.part, "r" );
+		try
+		{
+			raf.readFully( bytes, 0, ( int )Math.min( raf.length(), bytes.length ) );
+		}
+		finally
+		{
+			raf.close();
+		}
+		return bytes;
+	}
+
+	protected void writeBlock( final Block block, final byte[] bytes ) throws IOException
+	{
+		N5Volume.writeData( dataset, block.gridPosition, bytes );
+		block.part.delete();
+	}
+
+	/**
+	 * Write all incomplete blocks, merged with the sections of existing
+	 * blocks that were not exported.
+	 */
+	public void close() throws IOException
+	{
+		final ArrayList< Block > blocks;
+		synchronized ( pending )
+		{
+			blocks = new ArrayList< Block >( pending.values() );
+			pending.clear();
+		}
+		for ( final Block block : blocks )
+		{
+			final byte[] bytes = readPart( block );
+			final N5Volume.Block existing = volume.readBlock( dataset, block.gridPosition );
+			if ( existing != null && existing.size.length == 3 )
+			{
+				/* pixels are laid out by the stored size which may exceed
+				 * the cropped size of a border block */
+				final int n = bytesPerPixel();
+				final int rowLength = n * Math.min( block.size[ 0 ], existing.size[ 0 ] );
+				final int h = Math.min( block.size[ 1 ], existing.size[ 1 ] );
+				final int d = Math.min( block.size[ 2 ], existing.size[ 2 ] );
+				final ByteBuffer data = existing.data.duplicate();
+				for ( int z = 0; z < d; ++z )
+				{
+					if ( block.written[ z ] )
+						continue;
+					for ( int y = 0; y < h; ++y )
+					{
+						data.position( n * ( ( z * existing.size[ 1 ] + y ) * existing.size[ 0 ] ) );
+						data.get( bytes, n * ( ( z * block.size[ 1 ] + y ) * block.size[ 0 ] ), rowLength );
+					}
+				}
+			}
+			writeBlock( block, bytes );
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.ARGBType;
+
+/**
+ * A read-only {@link RandomAccessibleInterval} of ARGBTypes that generates its
+ * pixel values from a dataset of a local {@link N5Volume}.  uint8 pixels
+ * are gray, uint32 pixels are RGB.  Blocks are read through NIO, raw blocks
+ * memory-mapped, and kept in an LRU cache of limited size.  Missing blocks
+ * and pixels outside of the dataset are 0.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class N5RandomAccessibleInterval extends AbstractInterval implements RandomAccessibleInterval< ARGBType >
+{
+	public class N5RandomAccess extends Point implements RandomAccess< ARGBType >
+	{
+		final protected ARGBType t = new ARGBType();
+
+		/* current block and the box it covers */
+		protected N5Volume.Block block = null;
+		protected long x0, y0, z0, x1 = -1, y1 = -1, z1 = -1;
+
+		/* the last NEIGHBORHOOD_SIZE blocks visited by this access, see
+		 * CATMAIDRandomAccessibleInterval */
+		final protected long[][] neighborGridPositions = new long[ NEIGHBORHOOD_SIZE ][];
+		final protected N5Volume.Block[] neighborBlocks = new N5Volume.Block[ NEIGHBORHOOD_SIZE ];
+		protected int nextNeighbor = 0;
+
+		public N5RandomAccess()
+		{
+			super( 3 );
+		}
+
+		public N5RandomAccess( final N5RandomAccess template )
+		{
+			super( template );
+		}
+
+		protected void fetchBlock( final long x, final long y, final long z )
+		{
+			final long gx = floorDiv( x, blockSize[ 0 ] );
+			final long gy = floorDiv( y, blockSize[ 1 ] );
+			final long gz = floorDiv( z, blockSize[ 2 ] );
+			block = null;
+			for ( int i = 0; i < NEIGHBORHOOD_SIZE; ++i )
+			{
+				final long[] g = neighborGridPositions[ i ];
+				if ( g != null && g[ 0 ] == gx && g[ 1 ] == gy && g[ 2 ] == gz )
+				{
+					block = neighborBlocks[ i ];
+					break;
+				}
+			}
+			if ( block == null )
+			{
+				block = N5RandomAccessibleInterval.this.fetchBlock( gx, gy, gz );
+				neighborGridPositions[ nextNeighbor ] = new long[]{ gx, gy, gz };
+				neighborBlocks[ nextNeighbor ] = block;
+				nextNeighbor = ( nextNeighbor + 1 ) % NEIGHBORHOOD_SIZE;
+			}
+			x0 = gx * blockSize[ 0 ];
+			y0 = gy * blockSize[ 1 ];
+			z0 = gz * blockSize[ 2 ];
+			x1 = x0 + block.size[ 0 ];
+			y1 = y0 + block.size[ 1 ];
+			z1 = z0 + block.size[ 2 ];
+		}
+
+		@Override
+		public ARGBType get()
+		{
+			final long x = position[ 0 ];
+			final long y = position[ 1 ];
+			final long z = position[ 2 ];
+			if ( x < x0 || x >= x1 || y < y0 || y >= y1 || z < z0 || z >= z1 )
+			{
+				fetchBlock( x, y, z );
+				if ( x < x0 || x >= x1 || y < y0 || y >= y1 || z < z0 || z >= z1 )
+				{
+					t.set( 0 );
+					return t;
+				}
+			}
+			if ( block.data == null )
+				t.set( 0 );
+			else
+			{
+				final int i = ( int )( ( ( z - z0 ) * block.size[ 1 ] + y - y0 ) * block.size[ 0 ] + x - x0 );
+				if ( rgb )
+					t.set( 0xff000000 | block.data.getInt( i << 2 ) );
+				else
+				{
+					final int g = block.data.get( i ) & 0xff;
+					t.set( 0xff000000 | ( g << 16 ) | ( g << 8 ) | g );
+				}
+			}
+			return t;
+		}
+
+		@Override
+		public N5RandomAccess copy()
+		{
+			return new N5RandomAccess( this );
+		}
+
+		@Override
+		public N5RandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+
+	/**
+	 * Number of blocks remembered by each {@link N5RandomAccess}, enough
+	 * for the 2&times;2&times;2 neighborhood of n-linear interpolation.
+	 */
+	final static public int NEIGHBORHOOD_SIZE = 8;
+
+	final protected N5Volume volume;
+	final protected N5Volume.Dataset dataset;
+	final protected int[] blockSize;
+	final protected long[] gridSize;
+	final protected boolean rgb;
+
+	final protected long cacheCapacity;
+	/* LRU order, guarded by itself */
+	final protected LinkedHashMap< List< Long >, N5Volume.Block > cache =
+			new LinkedHashMap< List< Long >, N5Volume.Block >( 16, 0.75f, true );
+	/* guarded by cache */
+	final protected HashSet< List< Long > > loading = new HashSet< List< Long > >();
+	protected long cacheBytes = 0;
+
+	final protected AtomicLong blockLookups = new AtomicLong();
+	final protected AtomicLong blocksLoaded = new AtomicLong();
+
+	/**
+	 * @param volume
+	 * @param dataset
+	 * @param cacheCapacity maximum size of the cached blocks in bytes
+	 */
+	public N5RandomAccessibleInterval(
+			final N5Volume volume,
+			final N5Volume.Dataset dataset,
+			final long cacheCapacity )
+	{
+		super( dataset.dimensions );
+		this.volume = volume;
+		this.dataset = dataset;
+		this.cacheCapacity = cacheCapacity;
+		blockSize = dataset.blockSize;
+		gridSize = dataset.gridSize();
+		rgb = dataset.isRGB();
+	}
+
+	static protected long floorDiv( final long x, final long y )
+	{
+		return x >= 0 ? x / y : ( x + 1 ) / y - 1;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return 3;
+	}
+
+	@Override
+	public RandomAccess< ARGBType > randomAccess()
+	{
+		return new N5RandomAccess();
+	}
+
+	@Override
+	public RandomAccess< ARGBType > randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+
+	protected N5Volume.Block loadBlock( final long gx, final long gy, final long gz )
+	{
+		blocksLoaded.incrementAndGet();
+		final long[] gridPosition = new long[]{ gx, gy, gz };
+		if ( gx >= 0 && gy >= 0 && gz >= 0 && gx < gridSize[ 0 ] && gy < gridSize[ 1 ] && gz < gridSize[ 2 ] )
+		{
+			try
+			{
+				final N5Volume.Block block = volume.readBlock( dataset, gridPosition );
+				if ( block != null )
+					return block;
+			}
+			catch ( final IOException e )
+			{
+				System.out.println( "failed loading block " + Arrays.toString( gridPosition ) + " of " + dataset.directory + ": " + e.getMessage() );
+			}
+		}
+		/* empty block of the grid cell */
+		return new N5Volume.Block( blockSize.clone(), null );
+	}
+
+	/**
+	 * Get a block from the cache or load it.  A block that is being loaded
+	 * by another thread is waited for instead of being loaded twice.
+	 */
+	protected N5Volume.Block fetchBlock( final long gx, final long gy, final long gz )
+	{
+		blockLookups.incrementAndGet();
+		final List< Long > key = Arrays.asList( gx, gy, gz );
+		boolean registered = false;
+		synchronized ( cache )
+		{
+			while ( true )
+			{
+				final N5Volume.Block block = cache.get( key );
+				if ( block != null )
+					return block;
+				if ( loading.add( key ) )
+				{
+					registered = true;
+					break;
+				}
+				try
+				{
+					cache.wait();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+
+		N5Volume.Block block = null;
+		try
+		{
+			block = loadBlock( gx, gy, gz );
+		}
+		finally
+		{
+			synchronized ( cache )
+			{
+				if ( registered )
+					loading.remove( key );
+				if ( block != null && !cache.containsKey( key ) )
+				{
+					cache.put( key, block );
+					cacheBytes += size( block );
+					for ( final Iterator< N5Volume.Block > i = cache.values().iterator(); cacheBytes > cacheCapacity && i.hasNext(); )
+					{
+						cacheBytes -= size( i.next() );
+						i.remove();
+					}
+				}
+				cache.notifyAll();
+			}
+		}
+		return block;
+	}
+
+	static protected long size( final N5Volume.Block block )
+	{
+		return block.data == null ? 64 : block.data.capacity();
+	}
+
+	public N5Volume.Dataset getDataset()
+	{
+		return dataset;
+	}
+
+	public String getStatistics()
+	{
+		final long lookups = blockLookups.get();
+		synchronized ( cache )
+		{
+			return String.format(
+					"block cache: %d requests, %d blocks loaded, %.1f%% hits, %d blocks (%d MB) cached",
+					lookups,
+					blocksLoaded.get(),
+					lookups == 0 ? 0.0 : 100.0 * ( lookups - blocksLoaded.get() ) / lookups,
+					cache.size(),
+					cacheBytes >> 20 );
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimal local N5 container of 3D datasets of type uint8 (gray) or uint32
+ * (RGB) with raw or gzip compressed blocks, readable by the N5 libraries.
+ * A dataset is a directory with an <code>attributes.json</code> and one
+ * file per block at <code>&lt;x&gt;/&lt;y&gt;/&lt;z&gt;</code> in block
+ * grid coordinates.  A block file starts with a big-endian header (short
+ * mode 0, short number of dimensions, int size per dimension) followed by
+ * the optionally compressed big-endian pixels, x varying fastest.  Blocks
+ * at the upper border of a dataset are cropped to its dimensions.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class N5Volume
+{
+	final static public String VERSION = "2.0.0";
+	final static public String ATTRIBUTES = "attributes.json";
+
+	static public class Dataset
+	{
+		final public File directory;
+		final public long[] dimensions;
+		final public int[] blockSize;
+		/* "uint8" or "uint32" */
+		final public String dataType;
+		/* "raw" or "gzip" */
+		final public String compression;
+
+		public Dataset(
+				final File directory,
+				final long[] dimensions,
+				final int[] blockSize,
+				final String dataType,
+				final String compression )
+		{
+			this.directory = directory;
+			this.dimensions = dimensions;
+			this.blockSize = blockSize;
+			this.dataType = dataType;
+			this.compression = compression;
+		}
+
+		public boolean isRGB()
+		{
+			return dataType.equals( "uint32" );
+		}
+
+		/**
+		 * @return the size of the block at gridPosition cropped to the
+		 * 		dimensions of the dataset
+		 */
+		public int[] blockSize( final long[] gridPosition )
+		{
+			final int[] size = new int[ blockSize.length ];
+			for ( int d = 0; d < size.length; ++d )
+				size[ d ] = ( int )Math.min( blockSize[ d ], dimensions[ d ] - gridPosition[ d ] * blockSize[ d ] );
+			return size;
+		}
+
+		/**
+		 * @return the number of blocks per dimension
+		 */
+		public long[] gridSize()
+		{
+			final long[] size = new long[ dimensions.length ];
+			for ( int d = 0; d < size.length; ++d )
+				size[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			return size;
+		}
+
+		public File blockFile( final long[] gridPosition )
+		{
+			File file = directory;
+			for ( final long p : gridPosition )
+				file = new File( file, Long.toString( p ) );
+			return file;
+		}
+	}
+
+	static public class Block
+	{
+		/* size as stored, blocks written by other tools may exceed the
+		 * dataset at its border */
+		final public int[] size;
+		/* big-endian pixels, x varying fastest */
+		final public ByteBuffer data;
+
+		public Block( final int[] size, final ByteBuffer data )
+		{
+			this.size = size;
+			this.data = data;
+		}
+	}
+
+	final protected File root;
+
+	/**
+	 * Open a container, it is created if it does not exist.
+	 */
+	public N5Volume( final File root ) throws IOException
+	{
+		this.root = root;
+		final File attributes = new File( root, ATTRIBUTES );
+		if ( !attributes.exists() )
+			writeAttributes( attributes, "{\"n5\":\"" + VERSION + "\"}" );
+	}
+
+	public File getRoot()
+	{
+		return root;
+	}
+
+	/**
+	 * Write attributes to a temporary file and rename it such that
+	 * concurrent jobs never see a partial file.
+	 */
+	static protected void writeAttributes( final File file, final String json ) throws IOException
+	{
+		Util.mkdirs( file.getAbsoluteFile().getParentFile() );
+		final File tmp = File.createTempFile( ATTRIBUTES, ".tmp", file.getAbsoluteFile().getParentFile() );
+		final OutputStream out = new FileOutputStream( tmp );
+		try
+		{
+			out.write( json.getBytes( "UTF-8" ) );
+		}
+		finally
+		{
+			out.close();
+		}
+		if ( !tmp.renameTo( file ) )
+		{
+			file.delete();
+			if ( !tmp.renameTo( file ) )
+				throw new IOException( "failed writing " + file );
+		}
+	}
+
+	static protected String readAttributes( final File file ) throws IOException
+	{
+		final byte[] bytes = new FileTileSink().read( file );
+		if ( bytes == null )
+			throw new IOException( file + " does not exist" );
+		return new String( bytes, "UTF-8" );
+	}
+
+	static protected String toJSON( final long[] values )
+	{
+		final StringBuilder json = new StringBuilder( "[" );
+		for ( int d = 0; d < values.length; ++d )
+			json.append( d == 0 ? "" : "," ).append( values[ d ] );
+		return json.append( "]" ).toString();
+	}
+
+	static protected String attribute( final String json, final String key, final String valuePattern )
+	{
+		final Matcher matcher = Pattern.compile( "\"" + key + "\"\\s*:\\s*" + valuePattern ).matcher( json );
+		return matcher.find() ? matcher.group( 1 ) : null;
+	}
+
+	static protected long[] longArrayAttribute( final String json, final String key ) throws IOException
+	{
+		final String values = attribute( json, key, "\\[([^\\]]*)\\]" );
+		if ( values == null )
+			throw new IOException( "missing attribute " + key );
+		final String[] fields = values.split( "," );
+		final long[] array = new long[ fields.length ];
+		for ( int d = 0; d < array.length; ++d )
+			array[ d ] = Long.parseLong( fields[ d ].trim() );
+		return array;
+	}
+
+	public boolean exists( final String dataset )
+	{
+		return new File( new File( root, dataset ), ATTRIBUTES ).exists();
+	}
+
+	/**
+	 * Create a dataset or replace its attributes, existing blocks are kept.
+	 *
+	 * @param downsamplingFactors relative to the full resolution dataset,
+	 * 		null if not downsampled
+	 */
+	public Dataset createDataset(
+			final String dataset,
+			final long[] dimensions,
+			final int[] blockSize,
+			final String dataType,
+			final String compression,
+			final long[] downsamplingFactors ) throws IOException
+	{
+		final long[] blockSizeLong = new long[ blockSize.length ];
+		for ( int d = 0; d < blockSize.length; ++d )
+			blockSizeLong[ d ] = blockSize[ d ];
+		final StringBuilder json = new StringBuilder( "{" ).
+				append( "\"dimensions\":" ).append( toJSON( dimensions ) ).
+				append( ",\"blockSize\":" ).append( toJSON( blockSizeLong ) ).
+				append( ",\"dataType\":\"" ).append( dataType ).append( "\"" ).
+				append( ",\"compression\":{\"type\":\"" ).append( compression ).append( "\"" ).
+				append( compression.equals( "gzip" ) ? ",\"level\":-1}" : "}" );
+		if ( downsamplingFactors != null )
+			json.append( ",\"downsamplingFactors\":" ).append( toJSON( downsamplingFactors ) );
+		json.append( "}" );
+
+		final File directory = new File( root, dataset );
+		writeAttributes( new File( directory, ATTRIBUTES ), json.toString() );
+		return new Dataset( directory, dimensions.clone(), blockSize.clone(), dataType, compression );
+	}
+
+	public Dataset openDataset( final String dataset ) throws IOException
+	{
+		final File directory = new File( root, dataset );
+		final String json = readAttributes( new File( directory, ATTRIBUTES ) );
+		final long[] dimensions = longArrayAttribute( json, "dimensions" );
+		final long[] blockSizeLong = longArrayAttribute( json, "blockSize" );
+		final int[] blockSize = new int[ blockSizeLong.length ];
+		for ( int d = 0; d < blockSize.length; ++d )
+			blockSize[ d ] = ( int )blockSizeLong[ d ];
+		final String dataType = attribute( json, "dataType", "\"(\\w+)\"" );
+		if ( !"uint8".equals( dataType ) && !"uint32".equals( dataType ) )
+			throw new IOException( "unsupported data type " + dataType + " of " + directory );
+		String compression = attribute( json, "compression", "\\{[^}]*\"type\"\\s*:\\s*\"(\\w+)\"" );
+		if ( compression == null )
+			compression = attribute( json, "compressionType", "\"(\\w+)\"" );
+		if ( compression == null )
+			compression = "raw";
+		if ( !compression.equals( "raw" ) && !compression.equals( "gzip" ) )
+			throw new IOException( "unsupported compression " + compression + " of " + directory );
+		return new Dataset( directory, dimensions, blockSize, dataType, compression );
+	}
+
+	static protected void writeData(
+			final Dataset dataset,
+			final long[] gridPosition,
+			final byte[] data ) throws IOException
+	{
+		final int[] size = dataset.blockSize( gridPosition );
+		final File file = dataset.blockFile( gridPosition );
+		Util.mkdirs( file.getParentFile() );
+		final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+		try
+		{
+			out.writeShort( 0 );
+			out.writeShort( size.length );
+			for ( final int s : size )
+				out.writeInt( s );
+			if ( dataset.compression.equals( "gzip" ) )
+			{
+				final GZIPOutputStream gzip = new GZIPOutputStream( out, 1 << 16 );
+				gzip.write( data );
+				gzip.finish();
+			}
+			else
+				out.write( data );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Write a uint8 block, pixels must have the cropped size of the block.
+	 */
+	public void writeBlock(
+			final Dataset dataset,
+			final long[] gridPosition,
+			final byte[] pixels ) throws IOException
+	{
+		writeData( dataset, gridPosition, pixels );
+	}
+
+	/**
+	 * Write a uint32 block, pixels must have the cropped size of the block.
+	 */
+	public void writeBlock(
+			final Dataset dataset,
+			final long[] gridPosition,
+			final int[] pixels ) throws IOException
+	{
+		final ByteBuffer bytes = ByteBuffer.allocate( 4 * pixels.length );
+		bytes.asIntBuffer().put( pixels );
+		writeData( dataset, gridPosition, bytes.array() );
+	}
+
+	/**
+	 * Read a block through NIO.  Raw blocks are memory-mapped such that
+	 * their pixels are paged in from the file system cache on access
+	 * without being copied to the heap, gzip blocks are inflated into the
+	 * heap.
+	 *
+	 * @return the block or null if it does not exist
+	 */
+	public Block readBlock( final Dataset dataset, final long[] gridPosition ) throws IOException
+	{
+		final File file = dataset.blockFile( gridPosition );
+		if ( !file.exists() )
+			return null;
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( Channels.newInputStream( channel ), 1 << 16 ) );
+			final int mode = in.readShort();
+			if ( mode != 0 )
+				throw new IOException( "unsupported block mode " + mode + " of " + file );
+			final int n = in.readShort();
+			final int[] size = new int[ n ];
+			long length = dataset.isRGB() ? 4 : 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				size[ d ] = in.readInt();
+				length *= size[ d ];
+			}
+			final long offset = 4 + 4 * n;
+			if ( dataset.compression.equals( "gzip" ) )
+			{
+				final byte[] bytes = new byte[ ( int )length ];
+				new DataInputStream( new GZIPInputStream( in, 1 << 16 ) ).readFully( bytes );
+				return new Block( size, ByteBuffer.wrap( bytes ) );
+			}
+			if ( channel.size() < offset + length )
+				throw new IOException( "unexpected end of " + file );
+			/* the mapping remains valid after closing the channel */
+			return new Block( size, channel.map( FileChannel.MapMode.READ_ONLY, offset, length ) );
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Slab allocator for decoded tiles outside of the Java heap.  Slabs are
+ * either direct {@link ByteBuffer ByteBuffers} or regions of a memory-mapped
+ * temporary file, such that the store can be much larger than the heap
+ * without increasing garbage collection times.  Each slab is split into
+ * fixed-size slots of one tile.
+ *
+ * <p>Every {@link #allocate()} returns a new {@link IntBuffer} view of a
+ * slot.  The slot is re-used only after that view has become unreachable,
+ * i.e. after the {@link TileCache} has evicted it and no random access
+ * holds it anymore, so pixels are never overwritten while being read.  If
+ * all slots are taken, {@link #allocate()} triggers a garbage collection
+ * (at most once per eighth of the capacity) to reclaim unreachable views
+ * and, if that does not help, returns a buffer on the heap.  The store
+ * should therefore be larger than the hot tier of the cache by at least
+ * the tiles that random accesses keep in their neighborhood.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class OffHeapTileStore
+{
+	/**
+	 * Maximum size of a slab in bytes.
+	 */
+	final static public int SLAB_SIZE = 1 << 28;
+
+	final protected int slotLength, slotsPerSlab;
+	final protected long maxSlots;
+	final protected File directory;
+
+	final protected ArrayList< ByteBuffer > slabs = new ArrayList< ByteBuffer >();
+	final protected ArrayDeque< Long > freeSlots = new ArrayDeque< Long >();
+	final protected ReferenceQueue< IntBuffer > released = new ReferenceQueue< IntBuffer >();
+	final protected HashMap< Reference< IntBuffer >, Long > slotOfView = new HashMap< Reference< IntBuffer >, Long >();
+
+	protected RandomAccessFile file = null;
+	protected long numSlots = 0;
+	protected long heapFallbacks = 0;
+	protected long requestsSinceGC = 0;
+
+	/**
+	 * @param slotLength number of pixels per tile
+	 * @param capacity size of the store in bytes
+	 * @param directory directory for the memory-mapped file, null to use
+	 * 		direct memory
+	 */
+	public OffHeapTileStore( final int slotLength, final long capacity, final File directory )
+	{
+		this.slotLength = slotLength;
+		this.directory = directory;
+		slotsPerSlab = Math.max( 1, SLAB_SIZE / ( 4 * slotLength ) );
+		maxSlots = capacity / ( 4L * slotLength );
+	}
+
+	protected ByteBuffer createSlab( final int slabIndex, final int size ) throws IOException
+	{
+		if ( directory == null )
+			return ByteBuffer.allocateDirect( size );
+
+		if ( file == null )
+		{
+			directory.mkdirs();
+			final File tmp = File.createTempFile( "tiles", ".raw", directory );
+			tmp.deleteOnExit();
+			file = new RandomAccessFile( tmp, "rw" );
+		}
+		return file.getChannel().map( FileChannel.MapMode.READ_WRITE, ( long )slabIndex * slotsPerSlab * 4 * slotLength, size );
+	}
+
+	/**
+	 * Move the slots of all unreachable views to the free slots.
+	 */
+	protected void reclaim()
+	{
+		for ( Reference< ? extends IntBuffer > ref = released.poll(); ref != null; ref = released.poll() )
+			freeSlots.push( slotOfView.remove( ref ) );
+	}
+
+	protected IntBuffer view( final long slot )
+	{
+		final ByteBuffer slab = slabs.get( ( int )( slot / slotsPerSlab ) ).duplicate();
+		final int offset = ( int )( slot % slotsPerSlab ) * 4 * slotLength;
+		slab.position( offset );
+		slab.limit( offset + 4 * slotLength );
+		final IntBuffer view = slab.slice().order( ByteOrder.nativeOrder() ).asIntBuffer();
+		slotOfView.put( new PhantomReference< IntBuffer >( view, released ), slot );
+		return view;
+	}
+
+	/**
+	 * @return a buffer of slotLength pixels with undefined contents
+	 */
+	synchronized public IntBuffer allocate()
+	{
+		reclaim();
+		++requestsSinceGC;
+		if ( freeSlots.isEmpty() && numSlots < maxSlots )
+		{
+			final int slabSlots = ( int )Math.min( slotsPerSlab, maxSlots - numSlots );
+			try
+			{
+				slabs.add( createSlab( slabs.size(), slabSlots * 4 * slotLength ) );
+				for ( int i = 0; i < slabSlots; ++i )
+					freeSlots.add( numSlots + i );
+				numSlots += slabSlots;
+			}
+			catch ( final IOException e )
+			{
+				System.out.println( "failed creating off-heap slab: " + e.getMessage() );
+			}
+			catch ( final OutOfMemoryError e )
+			{
+				System.out.println( "failed creating off-heap slab: " + e.getMessage() );
+			}
+		}
+		/* collect unreachable views at most once per eighth of the
+		 * capacity */
+		if ( freeSlots.isEmpty() && requestsSinceGC >= Math.max( 16, maxSlots / 8 ) )
+		{
+			System.gc();
+			requestsSinceGC = 0;
+			/* references are enqueued after the collection */
+			try
+			{
+				final Reference< ? extends IntBuffer > ref = released.remove( 10 );
+				if ( ref != null )
+					freeSlots.push( slotOfView.remove( ref ) );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			reclaim();
+		}
+		if ( freeSlots.isEmpty() )
+		{
+			++heapFallbacks;
+			return IntBuffer.wrap( new int[ slotLength ] );
+		}
+		return view( freeSlots.pop() );
+	}
+
+	public int getSlotLength()
+	{
+		return slotLength;
+	}
+
+	/**
+	 * @return the size of all slabs in bytes
+	 */
+	synchronized public long getSize()
+	{
+		return numSlots * 4 * slotLength;
+	}
+
+	synchronized public long getHeapFallbacks()
+	{
+		return heapFallbacks;
+	}
+}
@@ -0,0 +1,336 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * {@link TileSink} that appends all tiles of a directory to one
+ * {@link TilePack}, e.g. with the default tile pattern
+ * <code>&lt;z&gt;/&lt;r&gt;_&lt;c&gt;_&lt;s&gt;</code>, all tiles of
+ * section z at all scale levels go to <code>&lt;z&gt;.pack</code>.  The
+ * tile pattern thereby defines the sharding of the packs.
+ *
+ * <p>At most maxOpenPacks packs are open at a time, the least recently
+ * used one that is not being read or written is closed when another one is
+ * opened.  Closing an evicted pack only {@link TilePack#flush() flushes}
+ * its index, packs are forced to the device and compacted once, on
+ * {@link #close()}.  Packs are opened and closed outside of the lock of the
+ * sink, such that threads that use other packs do not wait for it.  A pack
+ * must be written by only one process at a time.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class PackTileSink implements TileSink
+{
+	final static public String EXTENSION = ".pack";
+
+	static protected class OpenPack
+	{
+		final protected File file;
+		/* opened on first use, guarded by this */
+		protected TilePack pack = null;
+		/* the previous instance of the same pack if it was still being
+		 * released when this one was created, guarded by this */
+		protected OpenPack predecessor;
+		protected boolean released = false;
+		/* number of reads and writes in progress, guarded by the sink */
+		protected int pins = 0;
+
+		protected OpenPack( final File file, final OpenPack predecessor )
+		{
+			this.file = file;
+			this.predecessor = predecessor;
+		}
+
+		/**
+		 * @return the pack or null if it does not exist and create is false
+		 */
+		synchronized protected TilePack open( final boolean create ) throws IOException
+		{
+			if ( pack == null )
+			{
+				/* the index of the predecessor must be written first */
+				if ( predecessor != null )
+				{
+					predecessor.awaitRelease();
+					predecessor = null;
+				}
+				if ( !create && !file.exists() )
+					return null;
+				pack = new TilePack( file, true );
+			}
+			return pack;
+		}
+
+		/**
+		 * @return true if the pack was changed and still has to be forced to
+		 * 		the device
+		 */
+		synchronized protected boolean release() throws IOException
+		{
+			try
+			{
+				return pack != null && pack.release();
+			}
+			finally
+			{
+				pack = null;
+				released = true;
+				notifyAll();
+			}
+		}
+
+		synchronized protected void awaitRelease() throws IOException
+		{
+			while ( !released )
+			{
+				try
+				{
+					wait();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException( "interrupted waiting for " + file );
+				}
+			}
+		}
+
+		/**
+		 * @return false if the pack was never opened
+		 */
+		synchronized protected boolean close( final boolean force ) throws IOException
+		{
+			if ( pack == null )
+				return false;
+			try
+			{
+				pack.close( force );
+			}
+			finally
+			{
+				pack = null;
+			}
+			return true;
+		}
+	}
+
+	final protected int maxOpenPacks;
+
+	/* LRU order, guarded by this */
+	final protected LinkedHashMap< File, OpenPack > packs = new LinkedHashMap< File, OpenPack >( 16, 0.75f, true );
+	/* packs that were evicted and are being released, guarded by this */
+	final protected HashMap< File, OpenPack > releasing = new HashMap< File, OpenPack >();
+	/* packs that were evicted after being written, guarded by this */
+	final protected HashSet< File > flushed = new HashSet< File >();
+
+	public PackTileSink( final int maxOpenPacks )
+	{
+		this.maxOpenPacks = maxOpenPacks;
+	}
+
+	public PackTileSink()
+	{
+		this( 16 );
+	}
+
+	/**
+	 * @return the pack that contains a tile file
+	 */
+	static public File packFile( final File file )
+	{
+		return new File( file.getAbsoluteFile().getParentFile().getPath() + EXTENSION );
+	}
+
+	/**
+	 * Remove the least recently used packs that are not pinned until at
+	 * most maxOpenPacks are open.
+	 *
+	 * @return the removed packs that have to be {@link #release(ArrayList)
+	 * 		released}
+	 */
+	synchronized protected ArrayList< OpenPack > evict()
+	{
+		final ArrayList< OpenPack > evicted = new ArrayList< OpenPack >();
+		for ( final Iterator< OpenPack > i = packs.values().iterator(); packs.size() > maxOpenPacks && i.hasNext(); )
+		{
+			final OpenPack open = i.next();
+			if ( open.pins == 0 )
+			{
+				i.remove();
+				releasing.put( open.file, open );
+				evicted.add( open );
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Write the index of evicted packs and close them.
+	 */
+	protected void release( final ArrayList< OpenPack > evicted ) throws IOException
+	{
+		IOException failure = null;
+		for ( final OpenPack open : evicted )
+		{
+			try
+			{
+				if ( open.release() )
+				{
+					synchronized ( this )
+					{
+						flushed.add( open.file );
+					}
+				}
+			}
+			catch ( final IOException e )
+			{
+				if ( failure == null )
+					failure = e;
+			}
+			finally
+			{
+				synchronized ( this )
+				{
+					if ( releasing.get( open.file ) == open )
+						releasing.remove( open.file );
+				}
+			}
+		}
+		if ( failure != null )
+			throw failure;
+	}
+
+	/**
+	 * Get a pack and pin it such that it is not closed before it is
+	 * {@link #unpin(OpenPack) unpinned}.  The pack is opened by
+	 * {@link OpenPack#open(boolean)} outside of the lock of the sink.
+	 */
+	synchronized protected OpenPack pin( final File file )
+	{
+		final File packFile = packFile( file );
+		OpenPack open = packs.get( packFile );
+		if ( open == null )
+		{
+			open = new OpenPack( packFile, releasing.get( packFile ) );
+			packs.put( packFile, open );
+		}
+		++open.pins;
+		return open;
+	}
+
+	protected void unpin( final OpenPack open ) throws IOException
+	{
+		final ArrayList< OpenPack > evicted;
+		synchronized ( this )
+		{
+			--open.pins;
+			evicted = evict();
+		}
+		release( evicted );
+	}
+
+	@Override
+	public void write( final File file, final byte[] bytes ) throws IOException
+	{
+		final OpenPack open = pin( file );
+		try
+		{
+			open.open( true ).append( file.getName(), bytes );
+		}
+		finally
+		{
+			unpin( open );
+		}
+	}
+
+	@Override
+	public byte[] read( final File file ) throws IOException
+	{
+		final OpenPack open = pin( file );
+		try
+		{
+			final TilePack pack = open.open( false );
+			return pack == null ? null : pack.read( file.getName() );
+		}
+		finally
+		{
+			unpin( open );
+		}
+	}
+
+	/**
+	 * Close all open packs and force them and all packs that were closed
+	 * earlier to the device.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		final ArrayList< OpenPack > pending;
+		synchronized ( this )
+		{
+			pending = new ArrayList< OpenPack >( releasing.values() );
+		}
+		for ( final OpenPack open : pending )
+			open.awaitRelease();
+
+		final ArrayList< OpenPack > closing;
+		final HashSet< File > closed;
+		synchronized ( this )
+		{
+			closing = new ArrayList< OpenPack >( packs.values() );
+			closed = new HashSet< File >( flushed );
+			packs.clear();
+			flushed.clear();
+		}
+		IOException failure = null;
+		for ( final OpenPack open : closing )
+		{
+			try
+			{
+				if ( open.close( closed.contains( open.file ) ) )
+					closed.remove( open.file );
+			}
+			catch ( final IOException e )
+			{
+				if ( failure == null )
+					failure = e;
+			}
+		}
+		for ( final File packFile : closed )
+		{
+			try
+			{
+				new TilePack( packFile, true ).close( true );
+			}
+			catch ( final IOException e )
+			{
+				if ( failure == null )
+					failure = e;
+			}
+		}
+		if ( failure != null )
+			throw failure;
+	}
+}
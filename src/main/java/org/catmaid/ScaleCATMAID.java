@@ -17,13 +17,28 @@
 package org.catmaid;
 
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.awt.image.PixelGrabber;
 import java.io.File;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.imageio.ImageIO;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.view.Views;
 
 /**
  * <p>A standalone command line application to generate the scale pyramid of an
@@ -54,11 +69,48 @@ import javax.imageio.ImageIO;
  * <dd>file name for tiles including extension and base path (string,
  * basePath + "%5$d/%8$d_%9$d_%1$d.jpg")</dd>
  * <dt>format</dt>
- * <dd>image tile file format, e.g. "jpg" or "png" (string, "jpg")</dd>
+ * <dd>image tile file format, e.g. "jpg", "png", or "raw" (string, "jpg")</dd>
  * <dt>quality</dt>
  * <dd>quality for jpg-compression if format is "jpg" (float, 0.85)</dd>
  * <dt>type</dt>
  * <dd>the type of export tiles, either "rgb or "gray" (string, "rgb")</dd>
+ * <dt>writeBehind</dt>
+ * <dd>number of encoded tiles that can be queued for writing in the
+ * background, 0 writes synchronously (int, 0)</dd>
+ * <dt>packTiles</dt>
+ * <dd>read and write the tiles of each directory of tileFormat, by default
+ * each <em>z</em>-section, from and to a single pack file
+ * <code>&lt;directory&gt;.pack</code> instead of one file per tile, scale
+ * level 0 must have been exported with packTiles too (boolean, false)</dd>
+ * <dt>volumePath</dt>
+ * <dd>path of an N5 container whose dataset "s0" was written by TileCATMAID
+ * with exportVolumePath, its scale levels "s1", "s2", ... are generated by
+ * downsampling its blocks in <em>x,y</em> in addition to the tiles,
+ * disabled if empty (string, "")</dd>
+ * <dt>volumeIsotropic</dt>
+ * <dd>downsample the scale levels of volumePath by 2 in <em>z</em> too,
+ * out of core in blocks of the dataset (boolean, false)</dd>
+ * <dt>volumeBlocksInFlight</dt>
+ * <dd>maximum number of blocks of volumePath that are downsampled at the
+ * same time with volumeIsotropic, each holds the 2&times;2&times;2 source
+ * blocks it covers in memory (int, 2 &times; numThreads)</dd>
+ * <dt>sectionPath</dt>
+ * <dd>directory of raw <em>z</em>-sections written by TileCATMAID with
+ * exportSectionPath, scale level 0 and the scale pyramid are generated from
+ * the memory-mapped sections instead of from scale level 0 tiles, the type
+ * of tiles is that of the sections, disabled if empty (string, "")</dd>
+ * <dt>numThreads</dt>
+ * <dd>number of N5 blocks or sections downsampled in parallel (int, 1)</dd>
+ * <dt>changedTiles</dt>
+ * <dd>text file listing changed scale level 0 tiles, one tile per line as
+ * "z r c", only the tiles of the scale pyramid that cover them are
+ * regenerated, disabled if empty, ignored with sectionPath (string, "")</dd>
+ * <dt>manifest</dt>
+ * <dd>text file with the modification times of all scale level 0 tiles,
+ * scale level 0 tiles that were added, modified, or removed since the last
+ * run are changed tiles as with changedTiles, the manifest is updated after
+ * scaling, a missing manifest is created and all tiles are changed, not
+ * supported with packTiles, disabled if empty (string, "")</dd>
  * </dl>
  * <p>Parameters are passed as properties to the JVM virtual machine, e.g.
  * <code>./java -jar ScaleCATMAID.jar</code></p>
@@ -77,6 +129,15 @@ public class ScaleCATMAID
 		public String format;
 		public float quality;
 		public int type;
+		public int writeBehind;
+		public boolean packTiles;
+		public String volumePath;
+		public boolean volumeIsotropic;
+		public int volumeBlocksInFlight;
+		public String sectionPath;
+		public int numThreads;
+		public String changedTilesPath;
+		public String manifestPath;
 	}
 	
 	private ScaleCATMAID(){}
@@ -102,6 +163,21 @@ public class ScaleCATMAID
 		else
 			p.type = BufferedImage.TYPE_INT_RGB;
 		
+		p.writeBehind = Integer.parseInt( System.getProperty( "writeBehind", "0" ) );
+		p.packTiles = Boolean.parseBoolean( System.getProperty( "packTiles", "false" ) );
+		p.volumePath = System.getProperty( "volumePath", "" );
+		p.sectionPath = System.getProperty( "sectionPath", "" );
+		p.numThreads = Integer.parseInt( System.getProperty( "numThreads", "1" ) );
+		p.volumeIsotropic = Boolean.parseBoolean( System.getProperty( "volumeIsotropic", "false" ) );
+		p.volumeBlocksInFlight = Integer.parseInt( System.getProperty( "volumeBlocksInFlight", "" + 2 * p.numThreads ) );
+		p.changedTilesPath = System.getProperty( "changedTiles", "" );
+		p.manifestPath = System.getProperty( "manifest", "" );
+		if ( p.packTiles && p.manifestPath.length() > 0 )
+		{
+			System.out.println( "manifest is not supported for packed tiles, ignoring it" );
+			p.manifestPath = "";
+		}
+		
 		return p;
 	}
 	
@@ -111,20 +187,24 @@ public class ScaleCATMAID
 			final int type )
 	{
 //		System.out.println( path );
-		final File file = new File( path );
-		if ( file.exists() )
+		try
 		{
-			try
-			{
-				return ImageIO.read( new File( path ) );
-			}
-			catch ( final IOException e )
-			{
-				return alternative;
-			}
+			final BufferedImage image = Util.readTile( path );
+			return image == null ? alternative : image;
 		}
-		else
+		catch ( final IOException e )
+		{
 			return alternative;
+		}
+	}
+	
+	
+	final static protected void release(
+			final BufferedImage image,
+			final BufferedImage alternative )
+	{
+		if ( image != alternative && image != null )
+			BufferPool.releaseImage( image );
 	}
 	
 	
@@ -157,7 +237,7 @@ public class ScaleCATMAID
 		final BufferedImage alternative = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
 		
 		final int[] targetPixels = new int[ tileWidth * tileHeight ];
-		final BufferedImage target = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
+		final BufferedImage target = Util.wrapRGB( targetPixels, tileWidth, tileHeight );
 		
 		final BufferedImage sourceImage = new BufferedImage( tileWidth * 2, tileHeight * 2, BufferedImage.TYPE_INT_RGB );
 		final Graphics2D g = sourceImage.createGraphics();
@@ -169,6 +249,8 @@ Z:		for ( long z = minZ; z <= maxZ; ++z )
 S:			for ( int s = 1; true; ++s )
 			{
 				System.out.println( "  scale: " +  s );
+				/* scale level s - 1 must be written before reading it */
+				Util.flush();
 				final int iScale = 1 << s;
 				final double scale = 1.0 / iScale;
 				
@@ -184,7 +266,7 @@ Y:				for ( long y = 0; proceedY; y += tileHeight )
 					for ( long x = 0; proceedX; x += tileWidth )
 					{
 						final long xt = x / tileWidth;
-						final Image imp1 = open(
+						final BufferedImage imp1 = open(
 								String.format( tileFormat, s1, scale1, x * iScale1, y * iScale1, z, tileWidth * iScale1, tileHeight * iScale1, 2 * yt, 2 * xt ),
 								alternative,
 								type );
@@ -198,14 +280,14 @@ Y:				for ( long y = 0; proceedY; y += tileHeight )
 							else
 								continue Y;
 						
-						final Image imp2 = open(
+						final BufferedImage imp2 = open(
 								String.format( tileFormat, s1, scale1, ( x + tileWidth ) * iScale1, y * iScale1, z, tileWidth * iScale1, tileHeight * iScale1, 2 * yt, 2 * xt + 1 ),
 								alternative,
 								type );
 						
 						proceedX = imp2 != alternative;
 						
-						final Image imp3 = open(
+						final BufferedImage imp3 = open(
 								String.format( tileFormat, s1, scale1, x * iScale1, ( y + tileHeight ) * iScale1, z, tileWidth * iScale1, tileHeight * iScale1, 2 * yt + 1, 2 * xt ),
 								alternative,
 								type );
@@ -213,51 +295,819 @@ Y:				for ( long y = 0; proceedY; y += tileHeight )
 						proceedY = imp3 != alternative;
 						
 						if ( x == 0 && y == 0 && !( proceedX || proceedY) )
+						{
+							release( imp1, alternative );
 							break S;
+						}
 						
-						final Image imp4 = open(
+						final BufferedImage imp4 = open(
 								String.format( tileFormat, s1, scale1, ( x + tileWidth ) * iScale1, ( y + tileHeight ) * iScale1, z, tileWidth * iScale1, tileHeight * iScale1, 2 * yt + 1, 2 * xt + 1 ),
 								alternative,
 								type );
 						
-						g.drawImage( imp1, 0, 0, null );
-						g.drawImage( imp2, tileWidth, 0, null );
-						g.drawImage( imp3, 0, tileHeight, null );
-						g.drawImage( imp4, tileWidth, tileHeight, null );
-						
-						final PixelGrabber pg = new PixelGrabber( sourceImage, 0, 0, tileWidth * 2, tileHeight * 2, sourcePixels, 0, tileWidth * 2 );
-						pg.grabPixels();
-						
-						Downsampler.downsampleRGB( sourcePixels, targetPixels, tileWidth * 2, tileHeight * 2 );
-						
-						target.getRaster().setDataElements( 0, 0, tileWidth, tileHeight, targetPixels );
-						final BufferedImage targetCopy = Util.draw( target, type );
-
-						Util.writeTile(
-								targetCopy,
+						downsample(
+								imp1,
+								imp2,
+								imp3,
+								imp4,
+								alternative,
+								g,
+								sourceImage,
+								sourcePixels,
+								target,
+								targetPixels,
 								String.format( tileFormat, s, scale, x * iScale, y * iScale, z, tileWidth * iScale, tileHeight * iScale, yt, xt ),
 								format,
-								quality );
+								quality,
+								type );
 					}
 				}
 			}
 		}
 	}
 	
-	final static public void scale( final Param p ) throws Exception
+	/**
+	 * Regenerate the tiles of the scale pyramid that cover changed scale
+	 * level 0 tiles.  Changed tiles are grouped by <em>z</em>-section and
+	 * each scale level regenerates the parents of the tiles of the previous
+	 * level, i.e. the work is proportional to the number of changed tiles
+	 * and the number of scale levels, not to the size of the sections.  The
+	 * pyramid ends at the first scale level that consists of a single tile
+	 * as in {@link #scale(String, int, int, long, long, String, float, int)}.
+	 * 
+	 * @param tileFormat format string addressing tiles including basePath
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param changedTiles changed scale level 0 tiles as ( z, r, c )
+	 * @param format file format, e.g. "jpg" or "png"
+	 * @param quality quality for jpg-compression if format is "jpg"
+	 * @param type the type of export tiles, e.g.
+	 * 		{@link BufferedImage#TYPE_BYTE_GRAY}
+	 * 
+	 * @throws Exception
+	 */
+	final public static void scaleChanged(
+			final String tileFormat,
+			final int tileWidth,
+			final int tileHeight,
+			final List< long[] > changedTiles,
+			final String format,
+			final float quality,
+			final int type ) throws Exception
+	{
+		final BufferedImage alternative = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
+		
+		final int[] targetPixels = new int[ tileWidth * tileHeight ];
+		final BufferedImage target = Util.wrapRGB( targetPixels, tileWidth, tileHeight );
+		
+		final BufferedImage sourceImage = new BufferedImage( tileWidth * 2, tileHeight * 2, BufferedImage.TYPE_INT_RGB );
+		final Graphics2D g = sourceImage.createGraphics();
+		final int[] sourcePixels = new int[ tileWidth * tileHeight * 4 ];
+		
+		final TreeMap< Long, HashSet< List< Long > > > sections = new TreeMap< Long, HashSet< List< Long > > >();
+		for ( final long[] tile : changedTiles )
+		{
+			HashSet< List< Long > > tiles = sections.get( tile[ 0 ] );
+			if ( tiles == null )
+			{
+				tiles = new HashSet< List< Long > >();
+				sections.put( tile[ 0 ], tiles );
+			}
+			tiles.add( Arrays.asList( tile[ 1 ], tile[ 2 ] ) );
+		}
+		
+		for ( final Map.Entry< Long, HashSet< List< Long > > > section : sections.entrySet() )
+		{
+			final long z = section.getKey();
+			System.out.println( "z-index: " +  z );
+			HashSet< List< Long > > tiles = section.getValue();
+			for ( int s = 1; true; ++s )
+			{
+				/* scale level s - 1 must be written before reading it */
+				Util.flush();
+				final int s1 = s - 1;
+				
+				/* scale level s - 1 is the top of the pyramid */
+				final BufferedImage right = open( tilePath( tileFormat, tileWidth, tileHeight, s1, z, 0, 1 ), alternative, type );
+				final BufferedImage bottom = open( tilePath( tileFormat, tileWidth, tileHeight, s1, z, 1, 0 ), alternative, type );
+				release( right, alternative );
+				release( bottom, alternative );
+				if ( right == alternative && bottom == alternative )
+					break;
+				
+				final HashSet< List< Long > > parents = new HashSet< List< Long > >();
+				for ( final List< Long > tile : tiles )
+					parents.add( Arrays.asList( tile.get( 0 ) / 2, tile.get( 1 ) / 2 ) );
+				System.out.println( "  scale: " +  s + ", " + parents.size() + " tiles" );
+				
+				for ( final List< Long > parent : parents )
+				{
+					final long yt = parent.get( 0 );
+					final long xt = parent.get( 1 );
+					
+					/* tiles without top left child are not part of the pyramid */
+					final BufferedImage imp1 = open( tilePath( tileFormat, tileWidth, tileHeight, s1, z, 2 * yt, 2 * xt ), alternative, type );
+					if ( imp1 == alternative )
+						continue;
+					final BufferedImage imp2 = open( tilePath( tileFormat, tileWidth, tileHeight, s1, z, 2 * yt, 2 * xt + 1 ), alternative, type );
+					final BufferedImage imp3 = open( tilePath( tileFormat, tileWidth, tileHeight, s1, z, 2 * yt + 1, 2 * xt ), alternative, type );
+					final BufferedImage imp4 = open( tilePath( tileFormat, tileWidth, tileHeight, s1, z, 2 * yt + 1, 2 * xt + 1 ), alternative, type );
+					
+					downsample(
+							imp1,
+							imp2,
+							imp3,
+							imp4,
+							alternative,
+							g,
+							sourceImage,
+							sourcePixels,
+							target,
+							targetPixels,
+							tilePath( tileFormat, tileWidth, tileHeight, s, z, yt, xt ),
+							format,
+							quality,
+							type );
+				}
+				tiles = parents;
+			}
+		}
+	}
+	
+	static protected String tilePath(
+			final String tileFormat,
+			final int tileWidth,
+			final int tileHeight,
+			final int s,
+			final long z,
+			final long r,
+			final long c )
 	{
-		scale(
-				p.tileFormat,
-				p.tileWidth,
-				p.tileHeight,
-				p.minZ,
-				p.maxZ,
-				p.format,
-				p.quality,
-				p.type );
+		final int iScale = 1 << s;
+		return Util.tilePath( tileFormat, s, 1.0 / iScale, c * tileWidth * iScale, r * tileHeight * iScale, z, tileWidth * iScale, tileHeight * iScale, r, c );
 	}
+	
+	/**
+	 * Downsample four tiles of scale level s - 1, arranged as
+	 * <pre>
+	 * imp1 imp2
+	 * imp3 imp4
+	 * </pre>
+	 * into the target tile of scale level s and write it to path.  The four
+	 * tiles are released.
+	 */
+	final static protected void downsample(
+			final BufferedImage imp1,
+			final BufferedImage imp2,
+			final BufferedImage imp3,
+			final BufferedImage imp4,
+			final BufferedImage alternative,
+			final Graphics2D g,
+			final BufferedImage sourceImage,
+			final int[] sourcePixels,
+			final BufferedImage target,
+			final int[] targetPixels,
+			final String path,
+			final String format,
+			final float quality,
+			final int type ) throws IOException, InterruptedException
+	{
+		final int tileWidth = target.getWidth();
+		final int tileHeight = target.getHeight();
+		
+		g.drawImage( imp1, 0, 0, null );
+		g.drawImage( imp2, tileWidth, 0, null );
+		g.drawImage( imp3, 0, tileHeight, null );
+		g.drawImage( imp4, tileWidth, tileHeight, null );
+		
+		release( imp1, alternative );
+		release( imp2, alternative );
+		release( imp3, alternative );
+		release( imp4, alternative );
+		
+		final PixelGrabber pg = new PixelGrabber( sourceImage, 0, 0, tileWidth * 2, tileHeight * 2, sourcePixels, 0, tileWidth * 2 );
+		pg.grabPixels();
+		
+		Downsampler.downsampleRGB( sourcePixels, targetPixels, tileWidth * 2, tileHeight * 2 );
+		
+		final BufferedImage targetCopy = type == BufferedImage.TYPE_INT_RGB ? target : Util.draw( target, type );
 
+		Util.writeTile(
+				targetCopy,
+				path,
+				format,
+				quality );
+		if ( targetCopy != target )
+			BufferPool.releaseImage( targetCopy );
+	}
+	
+	/**
+	 * Writes the tiles of all scale levels of a {@link SectionStore.Section}
+	 * strip by strip.  A strip is one row of tiles of a scale level, it is
+	 * downsampled into one half of the strip of the next scale level, which
+	 * is written when both of its halves are complete.  Strips of scale
+	 * level 0 are read from the mapped section without copying, only one
+	 * strip per scale level &gt;0 is kept in memory.
+	 */
+	static protected class SectionPyramid
+	{
+		final protected String tileFormat;
+		final protected int tileWidth, tileHeight;
+		final protected long z;
+		final protected String format;
+		final protected float quality;
+		final protected boolean rgb;
+		
+		/* tile grid and width in pixels of each scale level */
+		final protected int[] cols, rows, widths;
+		final protected byte[][] byteStrips;
+		final protected int[][] intStrips;
+		
+		final protected BufferedImage tile;
+		final protected byte[] tileBytes;
+		final protected int[] tileInts;
+		
+		public SectionPyramid(
+				final SectionStore.Section section,
+				final String tileFormat,
+				final int tileWidth,
+				final int tileHeight,
+				final long z,
+				final String format,
+				final float quality )
+		{
+			this.tileFormat = tileFormat;
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+			this.z = z;
+			this.format = format;
+			this.quality = quality;
+			rgb = section.bytesPerPixel == 4;
+			
+			/* scale levels until one fits into a single tile */
+			final ArrayList< int[] > grids = new ArrayList< int[] >();
+			for ( int c = section.width / tileWidth, r = section.height / tileHeight; true; c = ( c + 1 ) / 2, r = ( r + 1 ) / 2 )
+			{
+				grids.add( new int[]{ c, r } );
+				if ( c == 1 && r == 1 )
+					break;
+			}
+			final int numLevels = grids.size();
+			cols = new int[ numLevels ];
+			rows = new int[ numLevels ];
+			widths = new int[ numLevels ];
+			byteStrips = new byte[ numLevels ][];
+			intStrips = new int[ numLevels ][];
+			for ( int s = 0; s < numLevels; ++s )
+			{
+				cols[ s ] = grids.get( s )[ 0 ];
+				rows[ s ] = grids.get( s )[ 1 ];
+				widths[ s ] = cols[ s ] * tileWidth;
+				if ( s > 0 )
+				{
+					if ( rgb )
+						intStrips[ s ] = new int[ widths[ s ] * tileHeight ];
+					else
+						byteStrips[ s ] = new byte[ widths[ s ] * tileHeight ];
+				}
+			}
+			
+			if ( rgb )
+			{
+				tileBytes = null;
+				tileInts = new int[ tileWidth * tileHeight ];
+				tile = Util.wrapRGB( tileInts, tileWidth, tileHeight );
+			}
+			else
+			{
+				tile = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_BYTE_GRAY );
+				tileBytes = ( ( DataBufferByte )tile.getRaster().getDataBuffer() ).getData();
+				tileInts = null;
+			}
+		}
+		
+		protected void writeTiles( final int s, final int r, final Buffer strip ) throws IOException
+		{
+			final int iScale = 1 << s;
+			final double scale = 1.0 / iScale;
+			for ( int c = 0; c < cols[ s ]; ++c )
+			{
+				if ( rgb )
+				{
+					final IntBuffer source = ( ( IntBuffer )strip ).duplicate();
+					for ( int y = 0; y < tileHeight; ++y )
+					{
+						source.position( y * widths[ s ] + c * tileWidth );
+						source.get( tileInts, y * tileWidth, tileWidth );
+					}
+				}
+				else
+				{
+					final ByteBuffer source = ( ( ByteBuffer )strip ).duplicate();
+					for ( int y = 0; y < tileHeight; ++y )
+					{
+						source.position( y * widths[ s ] + c * tileWidth );
+						source.get( tileBytes, y * tileWidth, tileWidth );
+					}
+				}
+				final long x = ( long )c * tileWidth;
+				final long y = ( long )r * tileHeight;
+				Util.writeTile(
+						tile,
+						String.format( tileFormat, s, scale, x * iScale, y * iScale, z, tileWidth * iScale, tileHeight * iScale, r, c ),
+						format,
+						quality );
+			}
+		}
+		
+		/**
+		 * Write the tiles of strip r of scale level s and downsample it into
+		 * scale level s + 1.
+		 */
+		public void strip( final int s, final int r, final Buffer strip ) throws IOException
+		{
+			writeTiles( s, r, strip );
+			if ( s + 1 == cols.length )
+				return;
+			
+			final int half = tileHeight / 2 * widths[ s + 1 ];
+			final int offset = ( r & 1 ) * half;
+			if ( rgb )
+				Downsampler.downsampleRGB( ( IntBuffer )strip, widths[ s ], tileHeight, intStrips[ s + 1 ], offset, widths[ s + 1 ] );
+			else
+				Downsampler.downsampleBytes( ( ByteBuffer )strip, widths[ s ], tileHeight, byteStrips[ s + 1 ], offset, widths[ s + 1 ] );
+			
+			if ( ( r & 1 ) == 1 || r == rows[ s ] - 1 )
+			{
+				/* the last strip of an odd number of strips has no partner */
+				if ( ( r & 1 ) == 0 )
+				{
+					if ( rgb )
+						Arrays.fill( intStrips[ s + 1 ], half, 2 * half, 0 );
+					else
+						Arrays.fill( byteStrips[ s + 1 ], half, 2 * half, ( byte )0 );
+				}
+				strip( s + 1, r / 2, rgb ? IntBuffer.wrap( intStrips[ s + 1 ] ) : ByteBuffer.wrap( byteStrips[ s + 1 ] ) );
+			}
+		}
+	}
+	
+	/**
+	 * Generate the tiles of scale level 0 and the scale pyramid of a
+	 * <em>z</em>-section from a {@link SectionStore} section, until a scale
+	 * level fits into a single tile.  Tiles have the type of the section.
+	 * 
+	 * @param sectionFile
+	 * @param tileFormat format string addressing tiles including basePath
+	 * @param tileWidth must be even
+	 * @param tileHeight must be even
+	 * @param z
+	 * @param format file format, e.g. "jpg" or "png"
+	 * @param quality quality for jpg-compression if format is "jpg"
+	 * @throws IOException
+	 */
+	final public static void scaleSection(
+			final File sectionFile,
+			final String tileFormat,
+			final int tileWidth,
+			final int tileHeight,
+			final long z,
+			final String format,
+			final float quality ) throws IOException
+	{
+		final SectionStore.Section section = new SectionStore.Section( sectionFile, tileHeight );
+		if ( tileWidth % 2 != 0 || tileHeight % 2 != 0 || section.width % tileWidth != 0 || section.height % tileHeight != 0 )
+			throw new IOException( "Section " + sectionFile + " does not consist of even sized " + tileWidth + "x" + tileHeight + " tiles" );
+		
+		final SectionPyramid pyramid = new SectionPyramid( section, tileFormat, tileWidth, tileHeight, z, format, quality );
+		for ( int r = 0; r < section.numStrips(); ++r )
+		{
+			final ByteBuffer strip = section.strip( r );
+			pyramid.strip( 0, r, pyramid.rgb ? strip.asIntBuffer() : strip );
+		}
+	}
+	
+	/**
+	 * Generate the tiles of scale level 0 and the scale pyramid of a range
+	 * of <em>z</em>-sections from a {@link SectionStore}, the range ends at
+	 * the first missing section.
+	 * 
+	 * @param directory of the {@link SectionStore}
+	 * @param tileFormat format string addressing tiles including basePath
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param minZ the first z-index to be scaled
+	 * @param maxZ the last z-index to be scaled
+	 * @param format file format, e.g. "jpg" or "png"
+	 * @param quality quality for jpg-compression if format is "jpg"
+	 * @param service scales sections in parallel, null to scale them
+	 * 		serially
+	 * @throws IOException
+	 */
+	final public static void scaleSections(
+			final File directory,
+			final String tileFormat,
+			final int tileWidth,
+			final int tileHeight,
+			final long minZ,
+			final long maxZ,
+			final String format,
+			final float quality,
+			final ExecutorService service ) throws IOException
+	{
+		final ArrayList< Long > zs = new ArrayList< Long >();
+		for ( long z = minZ; z <= maxZ && SectionStore.sectionFile( directory, z ).exists(); ++z )
+			zs.add( z );
+		
+		if ( service == null )
+		{
+			for ( final long z : zs )
+			{
+				System.out.println( "z-index: " +  z );
+				scaleSection( SectionStore.sectionFile( directory, z ), tileFormat, tileWidth, tileHeight, z, format, quality );
+			}
+			return;
+		}
+		
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for ( final long z : zs )
+			tasks.add(
+					new Callable< Void >()
+					{
+						@Override
+						public Void call() throws IOException
+						{
+							System.out.println( "z-index: " +  z );
+							scaleSection( SectionStore.sectionFile( directory, z ), tileFormat, tileWidth, tileHeight, z, format, quality );
+							return null;
+						}
+					} );
+		try
+		{
+			for ( final Future< Void > future : service.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "interrupted scaling sections" );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException )e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+	
+	/**
+	 * Generate the block of scale level s from the four blocks of level
+	 * s - 1 that it covers in <em>x,y</em>, missing blocks and pixels are
+	 * black.
+	 */
+	final static protected void scaleBlock(
+			final N5Volume volume,
+			final N5Volume.Dataset source,
+			final N5Volume.Dataset target,
+			final long[] gridPosition ) throws IOException
+	{
+		final int[] blockSize = source.blockSize;
+		final int wa = blockSize[ 0 ] * 2;
+		final int ha = blockSize[ 1 ] * 2;
+		final int[] size = target.blockSize( gridPosition );
+		final boolean rgb = source.isRGB();
+		
+		/* the four source blocks and their sizes cropped to the dataset */
+		final N5Volume.Block[] children = new N5Volume.Block[ 4 ];
+		final int[][] childSizes = new int[ 4 ][];
+		final long[] sourceGridSize = source.gridSize();
+		for ( int i = 0; i < 4; ++i )
+		{
+			final long[] childPosition = new long[]{
+					2 * gridPosition[ 0 ] + ( i & 1 ),
+					2 * gridPosition[ 1 ] + ( i >> 1 ),
+					gridPosition[ 2 ] };
+			if ( childPosition[ 0 ] < sourceGridSize[ 0 ] && childPosition[ 1 ] < sourceGridSize[ 1 ] )
+			{
+				childSizes[ i ] = source.blockSize( childPosition );
+				children[ i ] = volume.readBlock( source, childPosition );
+			}
+		}
+		
+		final int n = size[ 0 ] * size[ 1 ];
+		final byte[] aBytes = rgb ? null : new byte[ wa * ha ];
+		final byte[] bBytes = rgb ? null : new byte[ wa / 2 * ( ha / 2 ) ];
+		final byte[] targetBytes = rgb ? null : new byte[ n * size[ 2 ] ];
+		final int[] aInts = rgb ? new int[ wa * ha ] : null;
+		final int[] bInts = rgb ? new int[ wa / 2 * ( ha / 2 ) ] : null;
+		final int[] targetInts = rgb ? new int[ n * size[ 2 ] ] : null;
+		for ( int z = 0; z < size[ 2 ]; ++z )
+		{
+			if ( rgb )
+				Arrays.fill( aInts, 0 );
+			else
+				Arrays.fill( aBytes, ( byte )0 );
+			for ( int i = 0; i < 4; ++i )
+			{
+				final N5Volume.Block child = children[ i ];
+				if ( child == null || child.size.length != 3 || z >= child.size[ 2 ] )
+					continue;
+				/* pixels are laid out by the stored size which may exceed
+				 * the cropped size of a border block */
+				final int w = Math.min( child.size[ 0 ], childSizes[ i ][ 0 ] );
+				final int h = Math.min( child.size[ 1 ], childSizes[ i ][ 1 ] );
+				final int offset = ( i & 1 ) * blockSize[ 0 ] + ( i >> 1 ) * blockSize[ 1 ] * wa;
+				final int sliceOffset = z * child.size[ 0 ] * child.size[ 1 ];
+				if ( rgb )
+				{
+					final IntBuffer data = child.data.asIntBuffer();
+					for ( int y = 0; y < h; ++y )
+					{
+						data.position( sliceOffset + y * child.size[ 0 ] );
+						data.get( aInts, offset + y * wa, w );
+					}
+				}
+				else
+				{
+					final ByteBuffer data = child.data.duplicate();
+					for ( int y = 0; y < h; ++y )
+					{
+						data.position( sliceOffset + y * child.size[ 0 ] );
+						data.get( aBytes, offset + y * wa, w );
+					}
+				}
+			}
+			if ( rgb )
+				Downsampler.downsampleRGB( aInts, bInts, wa, ha );
+			else
+				Downsampler.downsampleBytes( aBytes, bBytes, wa, ha );
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				System.arraycopy(
+						rgb ? bInts : bBytes,
+						y * ( wa / 2 ),
+						rgb ? targetInts : targetBytes,
+						z * n + y * size[ 0 ],
+						size[ 0 ] );
+		}
+		
+		if ( rgb )
+			volume.writeBlock( target, gridPosition, targetInts );
+		else
+			volume.writeBlock( target, gridPosition, targetBytes );
+	}
+	
+	/**
+	 * Generate the scale levels "s1", "s2", ... of an {@link N5Volume}
+	 * from its dataset "s0" until a level fits into a single block in
+	 * <em>x,y</em>.  Only blocks that contain sections minZ to maxZ are
+	 * generated.
+	 * 
+	 * @param volume
+	 * @param minZ the first z-index to be scaled
+	 * @param maxZ the last z-index to be scaled
+	 * @param service runs blocks in parallel, null to run them serially
+	 * @throws IOException
+	 */
+	final public static void scaleVolume(
+			final N5Volume volume,
+			final long minZ,
+			final long maxZ,
+			final ExecutorService service ) throws IOException
+	{
+		N5Volume.Dataset source = volume.openDataset( "s0" );
+		for ( int s = 1; source.dimensions[ 0 ] > source.blockSize[ 0 ] || source.dimensions[ 1 ] > source.blockSize[ 1 ]; ++s )
+		{
+			System.out.println( "  volume scale: " +  s );
+			final N5Volume.Dataset target = volume.createDataset(
+					"s" + s,
+					new long[]{
+							( source.dimensions[ 0 ] + 1 ) / 2,
+							( source.dimensions[ 1 ] + 1 ) / 2,
+							source.dimensions[ 2 ] },
+					source.blockSize,
+					source.dataType,
+					source.compression,
+					new long[]{ 1 << s, 1 << s, 1 } );
+			final long[] gridSize = target.gridSize();
+			final long minGz = Math.max( 0, minZ ) / target.blockSize[ 2 ];
+			final long maxGz = Math.min( gridSize[ 2 ] - 1, maxZ / target.blockSize[ 2 ] );
+			
+			final ArrayList< long[] > gridPositions = new ArrayList< long[] >();
+			for ( long gz = minGz; gz <= maxGz; ++gz )
+				for ( long gy = 0; gy < gridSize[ 1 ]; ++gy )
+					for ( long gx = 0; gx < gridSize[ 0 ]; ++gx )
+						gridPositions.add( new long[]{ gx, gy, gz } );
+			
+			if ( service == null )
+			{
+				for ( final long[] gridPosition : gridPositions )
+					scaleBlock( volume, source, target, gridPosition );
+			}
+			else
+			{
+				final N5Volume.Dataset fSource = source;
+				final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+				for ( final long[] gridPosition : gridPositions )
+					tasks.add(
+							new Callable< Void >()
+							{
+								@Override
+								public Void call() throws IOException
+								{
+									scaleBlock( volume, fSource, target, gridPosition );
+									return null;
+								}
+							} );
+				try
+				{
+					for ( final Future< Void > future : service.invokeAll( tasks ) )
+						future.get();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException( "interrupted scaling volume level " + s );
+				}
+				catch ( final ExecutionException e )
+				{
+					if ( e.getCause() instanceof IOException )
+						throw ( IOException )e.getCause();
+					throw new RuntimeException( e.getCause() );
+				}
+			}
+			source = target;
+		}
+	}
+	
+	/**
+	 * Generate the scale levels "s1", "s2", ... of an {@link N5Volume}
+	 * from its dataset "s0" by downsampling by 2 in <em>x,y,z</em> with a
+	 * {@link BlockDownsampler}, until a level fits into a single block in
+	 * <em>x,y</em>.  Odd sizes are rounded up, pixels outside of the
+	 * source are black.  Only blocks that contain sections minZ to maxZ of
+	 * "s0" are generated.
+	 * 
+	 * @param volume
+	 * @param minZ the first z-index to be scaled
+	 * @param maxZ the last z-index to be scaled
+	 * @param blocksInFlight maximum number of blocks in memory at a time
+	 * @param service runs blocks in parallel, null to run them serially
+	 * @throws IOException
+	 */
+	final public static void scaleVolumeIsotropic(
+			final N5Volume volume,
+			final long minZ,
+			final long maxZ,
+			final int blocksInFlight,
+			final ExecutorService service ) throws IOException
+	{
+		N5Volume.Dataset source = volume.openDataset( "s0" );
+		for ( int s = 1; source.dimensions[ 0 ] > source.blockSize[ 0 ] || source.dimensions[ 1 ] > source.blockSize[ 1 ]; ++s )
+		{
+			System.out.println( "  volume scale: " +  s );
+			final long[] dimensions = new long[ 3 ];
+			final long[] paddedMax = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				dimensions[ d ] = ( source.dimensions[ d ] + 1 ) / 2;
+				paddedMax[ d ] = 2 * dimensions[ d ] - 1;
+			}
+			final N5Volume.Dataset target = volume.createDataset(
+					"s" + s,
+					dimensions,
+					source.blockSize,
+					source.dataType,
+					source.compression,
+					new long[]{ 1 << s, 1 << s, 1 << s } );
+			
+			/* each target block reads the 2x2x2 source blocks it covers */
+			final long blockBytes = ( long )source.blockSize[ 0 ] * source.blockSize[ 1 ] * source.blockSize[ 2 ] * ( source.isRGB() ? 4 : 1 );
+			final N5RandomAccessibleInterval sourceImg = new N5RandomAccessibleInterval( volume, source, 8 * blocksInFlight * blockBytes );
+			final BlockDownsampler< ARGBType > downsampler = new BlockDownsampler< ARGBType >(
+					Views.interval( sourceImg, new long[ 3 ], paddedMax ),
+					target.blockSize,
+					new N5BlockSink( volume, target ),
+					blocksInFlight );
+			
+			final long[] gridSize = target.gridSize();
+			final long[] minGrid = new long[]{ 0, 0, Math.max( 0, minZ >> s ) / target.blockSize[ 2 ] };
+			final long[] maxGrid = new long[]{ gridSize[ 0 ] - 1, gridSize[ 1 ] - 1, Math.min( gridSize[ 2 ] - 1, ( maxZ >> s ) / target.blockSize[ 2 ] ) };
+			try
+			{
+				if ( service == null )
+					downsampler.run( minGrid, maxGrid );
+				else
+					downsampler.run( service, minGrid, maxGrid );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException( "interrupted scaling volume level " + s );
+			}
+			catch ( final ExecutionException e )
+			{
+				if ( e.getCause() instanceof IOException )
+					throw ( IOException )e.getCause();
+				throw new RuntimeException( e.getCause() );
+			}
+			catch ( final IOException e )
+			{
+				throw e;
+			}
+			catch ( final Exception e )
+			{
+				throw new RuntimeException( e );
+			}
+			source = target;
+		}
+	}
 	
+	final static public void scale( final Param p ) throws Exception
+	{
+		final ExecutorService service = p.numThreads > 1 ? Executors.newFixedThreadPool( p.numThreads ) : null;
+		try
+		{
+			Util.setTileSink( p.packTiles ? new PackTileSink() : null );
+			Util.setWriteBehind( p.writeBehind );
+			try
+			{
+				if ( p.sectionPath.length() > 0 )
+					scaleSections(
+							new File( p.sectionPath ),
+							p.tileFormat,
+							p.tileWidth,
+							p.tileHeight,
+							p.minZ,
+							p.maxZ,
+							p.format,
+							p.quality,
+							service );
+				else if ( p.changedTilesPath.length() > 0 || p.manifestPath.length() > 0 )
+				{
+					final ArrayList< long[] > changedTiles = new ArrayList< long[] >();
+					if ( p.changedTilesPath.length() > 0 )
+						for ( final long[] tile : TileManifest.readTiles( new File( p.changedTilesPath ), 3 ) )
+							if ( tile[ 0 ] >= p.minZ && tile[ 0 ] <= p.maxZ )
+								changedTiles.add( tile );
+					final TileManifest manifest;
+					if ( p.manifestPath.length() > 0 )
+					{
+						manifest = new TileManifest( new File( p.manifestPath ) );
+						changedTiles.addAll( manifest.update( p.tileFormat, p.tileWidth, p.tileHeight, p.minZ, p.maxZ ) );
+					}
+					else
+						manifest = null;
+					System.out.println( changedTiles.size() + " changed tiles" );
+					
+					scaleChanged(
+							p.tileFormat,
+							p.tileWidth,
+							p.tileHeight,
+							changedTiles,
+							p.format,
+							p.quality,
+							p.type );
+					
+					/* only after the pyramid is complete, such that a failed
+					 * run is repeated */
+					if ( manifest != null )
+					{
+						Util.flush();
+						manifest.write();
+					}
+				}
+				else
+					scale(
+							p.tileFormat,
+							p.tileWidth,
+							p.tileHeight,
+							p.minZ,
+							p.maxZ,
+							p.format,
+							p.quality,
+							p.type );
+			}
+			finally
+			{
+				Util.close();
+			}
+	
+			if ( p.volumePath.length() > 0 )
+			{
+				if ( p.volumeIsotropic )
+					scaleVolumeIsotropic( new N5Volume( new File( p.volumePath ) ), p.minZ, p.maxZ, p.volumeBlocksInFlight, service );
+				else
+					scaleVolume( new N5Volume( new File( p.volumePath ) ), p.minZ, p.maxZ, service );
+			}
+		}
+		finally
+		{
+			if ( service != null )
+				service.shutdown();
+		}
+	}
+
+
 	final static public void main( final String... args ) throws Exception
 	{
 		scale( parseParameters() );
@@ -0,0 +1,292 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Scale level 0 of an export as one raw file per <em>z</em>-section,
+ * <code>&lt;directory&gt;/&lt;z&gt;.raw</code>, to hand the pixels from
+ * {@link Tiler} to {@link ScaleCATMAID} without encoding and decoding them.
+ * A section file is a tile in the raw format (see
+ * {@link Util#readRaw(ByteBuffer)}) that covers the whole section, padded
+ * to full tiles.
+ *
+ * <p>Sections are memory-mapped in strips of one tile row, export tiles are
+ * written into the mapping and sections are read from it without copying.
+ * Mappings remain valid when a section is closed, closing only forces them
+ * to disk.  At most maxOpenSections sections are open for writing, the
+ * least recently used are closed.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class SectionStore
+{
+	static public class Section
+	{
+		final protected File file;
+		final public int width, height, bytesPerPixel, stripHeight;
+		final protected MappedByteBuffer[] strips;
+
+		/**
+		 * Open an existing section for reading.
+		 *
+		 * @param file
+		 * @param stripHeight number of rows per strip
+		 */
+		public Section( final File file, final int stripHeight ) throws IOException
+		{
+			this.file = file;
+			this.stripHeight = stripHeight;
+			final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+			try
+			{
+				final FileChannel channel = raf.getChannel();
+				final ByteBuffer header = ByteBuffer.allocate( Util.RAW_HEADER_SIZE );
+				while ( header.hasRemaining() && channel.read( header ) >= 0 );
+				header.flip();
+				if ( header.remaining() < Util.RAW_HEADER_SIZE )
+					throw new IOException( "Not a section " + file );
+				width = header.getInt();
+				height = header.getInt();
+				bytesPerPixel = header.getInt();
+				if ( ( bytesPerPixel != 1 && bytesPerPixel != 4 ) || channel.size() < Util.RAW_HEADER_SIZE + ( long )width * height * bytesPerPixel )
+					throw new IOException( "Not a section " + file );
+				strips = map( channel, FileChannel.MapMode.READ_ONLY );
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+
+		/**
+		 * Open a section for writing, create it if it does not exist with
+		 * the given size.  The pixels of an existing section of that size
+		 * are kept, such that sections can be written by several exports.
+		 */
+		public Section(
+				final File file,
+				final int width,
+				final int height,
+				final int bytesPerPixel,
+				final int stripHeight ) throws IOException
+		{
+			this.file = file;
+			this.width = width;
+			this.height = height;
+			this.bytesPerPixel = bytesPerPixel;
+			this.stripHeight = stripHeight;
+			Util.mkdirs( file.getParentFile() );
+			final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+			try
+			{
+				final FileChannel channel = raf.getChannel();
+				final ByteBuffer header = ByteBuffer.allocate( Util.RAW_HEADER_SIZE );
+				header.putInt( width ).putInt( height ).putInt( bytesPerPixel ).flip();
+				final long size = Util.RAW_HEADER_SIZE + ( long )width * height * bytesPerPixel;
+				final ByteBuffer existing = ByteBuffer.allocate( Util.RAW_HEADER_SIZE );
+				while ( existing.hasRemaining() && channel.read( existing ) >= 0 );
+				existing.flip();
+				if ( channel.size() != size || !existing.equals( header ) )
+				{
+					raf.setLength( 0 );
+					raf.setLength( size );
+					channel.write( header, 0 );
+				}
+				strips = map( channel, FileChannel.MapMode.READ_WRITE );
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+
+		protected MappedByteBuffer[] map( final FileChannel channel, final FileChannel.MapMode mode ) throws IOException
+		{
+			final long stripBytes = ( long )width * stripHeight * bytesPerPixel;
+			final MappedByteBuffer[] mapped = new MappedByteBuffer[ ( height + stripHeight - 1 ) / stripHeight ];
+			for ( int r = 0; r < mapped.length; ++r )
+			{
+				final long offset = r * stripBytes;
+				mapped[ r ] = channel.map(
+						mode,
+						Util.RAW_HEADER_SIZE + offset,
+						Math.min( stripBytes, ( long )width * height * bytesPerPixel - offset ) );
+			}
+			return mapped;
+		}
+
+		public int numStrips()
+		{
+			return strips.length;
+		}
+
+		/**
+		 * @return the mapped pixels of strip r, row-major starting at index
+		 * 		0, shared with other threads, i.e. use absolute access or a
+		 * 		{@link ByteBuffer#duplicate() duplicate}
+		 */
+		public ByteBuffer strip( final int r )
+		{
+			return strips[ r ];
+		}
+
+		/**
+		 * Write all mapped pixels to disk.
+		 */
+		public void force()
+		{
+			for ( final MappedByteBuffer strip : strips )
+				strip.force();
+		}
+	}
+
+	final protected File directory;
+	final protected int width, height, bytesPerPixel, tileWidth, tileHeight;
+	final protected int maxOpenSections;
+
+	/* LRU order, guarded by itself */
+	final protected LinkedHashMap< Long, Section > sections = new LinkedHashMap< Long, Section >( 16, 0.75f, true );
+
+	/**
+	 * @param directory
+	 * @param width of the export in pixels
+	 * @param height of the export in pixels
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param type the type of export tiles,
+	 * 		{@link BufferedImage#TYPE_BYTE_GRAY} tiles are stored with one
+	 * 		byte per pixel, {@link BufferedImage#TYPE_INT_RGB} with one int
+	 * @param maxOpenSections
+	 */
+	public SectionStore(
+			final File directory,
+			final long width,
+			final long height,
+			final int tileWidth,
+			final int tileHeight,
+			final int type,
+			final int maxOpenSections )
+	{
+		this.directory = directory;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.width = ( int )( ( width + tileWidth - 1 ) / tileWidth * tileWidth );
+		this.height = ( int )( ( height + tileHeight - 1 ) / tileHeight * tileHeight );
+		bytesPerPixel = type == BufferedImage.TYPE_BYTE_GRAY ? 1 : 4;
+		this.maxOpenSections = maxOpenSections;
+	}
+
+	public SectionStore(
+			final File directory,
+			final long width,
+			final long height,
+			final int tileWidth,
+			final int tileHeight,
+			final int type )
+	{
+		this( directory, width, height, tileWidth, tileHeight, type, 16 );
+	}
+
+	static public File sectionFile( final File directory, final long z )
+	{
+		return new File( directory, z + ".raw" );
+	}
+
+	protected Section section( final long z ) throws IOException
+	{
+		synchronized ( sections )
+		{
+			Section section = sections.get( z );
+			if ( section == null )
+			{
+				section = new Section( sectionFile( directory, z ), width, height, bytesPerPixel, tileHeight );
+				sections.put( z, section );
+				for ( final Iterator< Map.Entry< Long, Section > > i = sections.entrySet().iterator(); sections.size() > maxOpenSections && i.hasNext(); )
+				{
+					i.next().getValue().force();
+					i.remove();
+				}
+			}
+			return section;
+		}
+	}
+
+	/**
+	 * Add an export tile.
+	 *
+	 * @param z section index in the export
+	 * @param r tile row
+	 * @param c tile column
+	 * @param img the export tile, {@link BufferedImage#TYPE_BYTE_GRAY} or
+	 * 		{@link BufferedImage#TYPE_INT_RGB} as created by
+	 * 		{@link Util#draw(java.awt.Image, int)} or
+	 * 		{@link Util#wrapRGB(int[], int, int)}
+	 */
+	public void write( final long z, final long r, final long c, final BufferedImage img ) throws IOException
+	{
+		final Section section = section( z );
+		final int imgWidth = img.getWidth();
+		final int w = Math.min( imgWidth, tileWidth );
+		final int h = Math.min( img.getHeight(), tileHeight );
+		final int x0 = ( int )c * tileWidth;
+		if ( bytesPerPixel == 1 )
+		{
+			final byte[] pixels = ( ( DataBufferByte )img.getRaster().getDataBuffer() ).getData();
+			final ByteBuffer strip = section.strip( ( int )r ).duplicate();
+			for ( int y = 0; y < h; ++y )
+			{
+				strip.position( y * width + x0 );
+				strip.put( pixels, y * imgWidth, w );
+			}
+		}
+		else
+		{
+			final int[] pixels = ( ( DataBufferInt )img.getRaster().getDataBuffer() ).getData();
+			final IntBuffer strip = section.strip( ( int )r ).asIntBuffer();
+			for ( int y = 0; y < h; ++y )
+				for ( int x = 0, i = y * imgWidth, j = y * width + x0; x < w; ++x, ++i, ++j )
+					strip.put( j, 0xff000000 | pixels[ i ] );
+		}
+	}
+
+	/**
+	 * Force all open sections to disk and close them.
+	 */
+	public void close()
+	{
+		synchronized ( sections )
+		{
+			for ( final Section section : sections.values() )
+				section.force();
+			sections.clear();
+		}
+	}
+}
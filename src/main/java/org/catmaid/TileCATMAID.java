@@ -17,6 +17,10 @@
 package org.catmaid;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
@@ -31,6 +35,7 @@ import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
@@ -63,6 +68,12 @@ import org.catmaid.Tiler.Orientation;
  * <dd>base path of the source CATMAID stack (string, ""), not required if <code>sourceUrlFormat</code> includes it</dd>
  * <dt>sourceUrlFormat</dt>
  * <dd>URL format String to address CATMAID tiles(string, sourceBaseUrl + "%5$d/%8$d_%9$d_%1$d.jpg")</dd>
+ * <dt>sourceVolumePath</dt>
+ * <dd>path of a local N5 container with scale levels "s0", "s1", ... as
+ * written by exportVolumePath and ScaleCATMAID that is read instead of the
+ * CATMAID stack, its blocks are cached in sourceCacheSize, the source
+ * dimensions are those of "s0" and other source tile parameters are ignored,
+ * disabled if empty (string, "")</dd>
  * <dt>sourceWidth</dt>
  * <dd>width of the source in scale level 0 pixels in <em>xyz</em> orientation
  * (long, 0)</dd>
@@ -73,11 +84,49 @@ import org.catmaid.Tiler.Orientation;
  * <dd>depth of the source in scale level 0 pixels in <em>xyz</em> orientation
  * (long, 0)</dd>
  * <dt>sourceScaleLevel</dt>
- * <dd>source scale level to be used for export scale level 0 (long, 0)</dd>
+ * <dd>source scale level that defines the resolution of export scale level 0
+ * if <code>exportResXY</code> is not given (long, 0)</dd>
+ * <dt>sourceMaxScaleLevel</dt>
+ * <dd>coarsest scale level available in the source stack (long, first level
+ * that fits into a single tile)</dd>
  * <dt>sourceTileWidth</dt>
  * <dd>width of source image tiles in pixels (int, 256)</dd>
  * <dt>sourceTileHeight</dt>
  * <dd>height of source image tiles in pixels (int, 256)</dd>
+ * <dt>sourceSuperTileSize</dt>
+ * <dd>number of source tiles per side that are requested at once as one
+ * aligned super-tile, values &gt;1 require a source that renders arbitrary
+ * boxes such as the CATMAID RequestTileSource (type 2) (int, 1)</dd>
+ * <dt>sourceTimeout</dt>
+ * <dd>connect and read timeout for source tile requests in ms, requests that
+ * time out or fail with a server error are retried up to three times (int, 30000)</dd>
+ * <dt>sourceHedgePercentile</dt>
+ * <dd>latency percentile of recent source tile requests after which a
+ * duplicate request is sent and the first response is used, e.g. 0.95, 0
+ * disables hedging (double, 0)</dd>
+ * <dt>sourceHedgeBudget</dt>
+ * <dd>maximum number of duplicate requests relative to the number of source
+ * tile requests (double, 0.05)</dd>
+ * <dt>sourceReadAhead</dt>
+ * <dd>maximum number of source tiles read ahead in the background if
+ * sourceUrlFormat addresses local files (file: URL or path), 0 disables
+ * read-ahead.  Local tiles are read through NIO, tiles in the "raw" format
+ * are memory-mapped (int, 16)</dd>
+ * <dt>sourceCacheSize</dt>
+ * <dd>size of the cache for decoded source tiles in MB (long, a quarter of
+ * the maximum heap size)</dd>
+ * <dt>sourceEncodedCacheSize</dt>
+ * <dd>size of the cache for encoded source tiles in MB, tiles that are evicted
+ * from the decoded cache are decoded again from here instead of being
+ * requested again (long, a quarter of the maximum heap size)</dd>
+ * <dt>sourceCacheOffHeap</dt>
+ * <dd>keep decoded source tiles outside of the Java heap such that
+ * <code>sourceCacheSize</code> can be larger than the heap, in direct memory
+ * (requires an according <code>-XX:MaxDirectMemorySize</code>) or in a
+ * memory-mapped file in <code>sourceCacheDirectory</code> (boolean, false)</dd>
+ * <dt>sourceCacheDirectory</dt>
+ * <dd>directory for the memory-mapped file of <code>sourceCacheOffHeap</code>,
+ * direct memory is used if empty (string, "")</dd>
  * <dt>sourceResXY</dt>
  * <dd>source stack <em>x,y</em>-resolution (double, 1.0 )</dd>
  * <dt>sourceResZ</dt>
@@ -102,12 +151,27 @@ import org.catmaid.Tiler.Orientation;
  * <dd>depth of the the box in the source stack to be exported in scale level
  * 0 pixels in <em>xyz</em> orientation (long, 0)</dd>
  * <dt>orientation</dt>
- * <dd>orientation of exported stack, possible values "xy", "xz", "zy" (string,
- * "xy")</dd>
+ * <dd>orientation of exported stack, possible values "xy", "xz", "zy", or a
+ * comma separated list thereof, e.g. "xy,xz,zy", to export several
+ * orientations in a single sweep that loads the source only once.  The stack
+ * of each orientation is then exported to
+ * exportBasePath/&lt;orientation&gt; as a whole, i.e. the export ranges
+ * exportMin* and exportMax* are ignored, and exportVolumePath,
+ * exportSectionPath, and packTiles are not supported (string, "xy")</dd>
+ * <dt>sweepBlockSize</dt>
+ * <dd>maximum size in MB of the block of source pixels that each thread keeps
+ * in memory to export several orientations in a single sweep, a block is one
+ * tile in <em>x,y</em> and the least common multiple of tileWidth and
+ * tileHeight in <em>z</em>, if it is larger, "xz" and "zy" are exported in
+ * separate sweeps (long, 256)</dd>
  * <dt>tileWidth</dt>
  * <dd>width of exported image tiles in pixels (int, 256)</dd>
  * <dt>tileHeight</dt>
  * <dd>height of exported image tiles in pixels (int, 256)</dd>
+ * <dt>exportResXY</dt>
+ * <dd><em>x,y</em>-resolution of export scale level 0 in the units of
+ * <code>sourceResXY</code>, the source is read from the coarsest scale level
+ * that is at least as fine (double, sourceResXY &times; 2<sup>sourceScaleLevel</sup>)</dd>
  * <dt>exportMinZ</dt>
  * <dd>first <em>z</em>-section index to be exported (long, 0)</dd>
  * <dt>exportMaxZ</dt>
@@ -127,12 +191,45 @@ import org.catmaid.Tiler.Orientation;
  * extension and base path, must contain "&lt;s&gt;","&lt;z&gt;", "&lt;r&gt;",
  * "&lt;c&gt;" (string, "&lt;z&gt;/&lt;r&gt;_&lt;c&gt;_&lt;s&gt;")
  * <dt>format</dt>
- * <dd>image tile file format for export, e.g. "jpg" or "png" (string,
+ * <dd>image tile file format for export, e.g. "jpg" or "png", or "raw" for
+ * uncompressed tiles that can be memory-mapped when re-tiled (string,
  * "jpg")</dd>
  * <dt>quality</dt>
  * <dd>quality for export jpg-compression if format is "jpg" (float, 0.85)</dd>
  * <dt>type</dt>
  * <dd>the type of export tiles, either "rgb or "gray" (string, "rgb")</dd>
+ * <dt>interpolation</dt>
+ * <dd>interpolation scheme used, either nearest neighbor "NN" or n-linear "NL"
+ * (string, "NN")</dd>
+ * <dt>numThreads</dt>
+ * <dd>number of tiles exported in parallel, also the maximum number of
+ * concurrent source tile requests which adapts to the latency and errors of
+ * the source server (int, 1)</dd>
+ * <dt>writeBehind</dt>
+ * <dd>number of encoded tiles that can be queued for writing in the
+ * background, 0 writes synchronously (int, 0)</dd>
+ * <dt>packTiles</dt>
+ * <dd>append the tiles of each directory of tilePattern, by default each
+ * <em>z</em>-section, to a single pack file <code>&lt;directory&gt;.pack</code>
+ * with an index instead of writing one file per tile, exports into the same
+ * directory must not run concurrently (boolean, false)</dd>
+ * <dt>exportVolumePath</dt>
+ * <dd>path of an N5 container to which the exported stack is written in the
+ * same pass as dataset "s0", gray as uint8, rgb as uint32, disabled if empty
+ * (string, "")</dd>
+ * <dt>exportVolumeBlockDepth</dt>
+ * <dd>number of sections per block of the N5 dataset whose blocks are
+ * tileWidth &times; tileHeight in <em>x,y</em>, the sections of incomplete
+ * blocks are kept in part files next to the blocks, concurrent exports must
+ * use <em>z</em>-ranges aligned to it (int, 64)</dd>
+ * <dt>exportVolumeCompression</dt>
+ * <dd>compression of the N5 blocks, either "gzip" or "raw" (string,
+ * "gzip")</dd>
+ * <dt>exportSectionPath</dt>
+ * <dd>directory to which the export is written as one raw memory-mapped file
+ * per <em>z</em>-section, <code>&lt;z&gt;.raw</code>, instead of scale level 0
+ * tiles, ScaleCATMAID with sectionPath then writes scale level 0 and the scale
+ * pyramid from the sections, disabled if empty (string, "")</dd>
  * </dl>
  * 
  * <p>Parameters are passed as properties to the JVM virtual machine, e.g.
@@ -148,12 +245,15 @@ public class TileCATMAID
 	{
 		/* CATMAID source stack, representing an xyz-orientation */
 		public String sourceUrlFormat;
+		public String sourceVolumePath;
 		public long sourceWidth;
 		public long sourceHeight;
 		public long sourceDepth;
 		public long sourceScaleLevel;
+		public long sourceMaxScaleLevel;
 		public int sourceTileWidth;
 		public int sourceTileHeight;
+		public int sourceSuperTileSize;
 		public double sourceResXY;
 		public double sourceResZ;
 		
@@ -161,6 +261,8 @@ public class TileCATMAID
 		/* source interval (crop area) in isotropic pixel coordinates */
 		public Interval sourceInterval;
 		public Tiler.Orientation orientation;
+		/* all export orientations, the first is orientation */
+		public Tiler.Orientation[] orientations;
 		public int tileWidth;
 		public int tileHeight;
 		public long minZ;
@@ -175,6 +277,24 @@ public class TileCATMAID
 		public float quality;
 		public int type;
 		public TileCATMAID.Interpolation interpolation;
+		/* export x,y-resolution */
+		public double exportResXY;
+		public int numThreads;
+		public int sourceTimeout;
+		public double sourceHedgePercentile;
+		public double sourceHedgeBudget;
+		public int sourceReadAhead;
+		public long sourceCacheSize;
+		public long sourceEncodedCacheSize;
+		public boolean sourceCacheOffHeap;
+		public String sourceCacheDirectory;
+		public int writeBehind;
+		public boolean packTiles;
+		public String volumePath;
+		public int volumeBlockDepth;
+		public String volumeCompression;
+		public String sectionPath;
+		public long sweepBlockSize;
 	}
 	
 	static protected Param parseParameters()
@@ -184,20 +304,39 @@ public class TileCATMAID
 		/* CATMAID source stack */
 		final String sourceBaseUrl = System.getProperty( "sourceBaseUrl", "" );
 		p.sourceUrlFormat = System.getProperty( "sourceUrlFormat", sourceBaseUrl + "%5$d/%8$d_%9$d_%1$d.jpg" );
+		p.sourceVolumePath = System.getProperty( "sourceVolumePath", "" );
 		
 		p.sourceWidth = Long.parseLong( System.getProperty( "sourceWidth", "0" ) );
 		p.sourceHeight = Long.parseLong( System.getProperty( "sourceHeight", "0" ) );
 		p.sourceDepth = Long.parseLong( System.getProperty( "sourceDepth", "0" ) );
 		p.sourceScaleLevel = Long.parseLong( System.getProperty( "sourceScaleLevel", "0" ) );
 		
-		final int scaleXYDiv = 1 << p.sourceScaleLevel;
-		
 		p.sourceTileWidth = Integer.parseInt( System.getProperty( "sourceTileWidth", "256" ) );
 		p.sourceTileHeight = Integer.parseInt( System.getProperty( "sourceTileHeight", "256" ) );
+		p.sourceSuperTileSize = Integer.parseInt( System.getProperty( "sourceSuperTileSize", "1" ) );
+		p.sourceTimeout = Integer.parseInt( System.getProperty( "sourceTimeout", "30000" ) );
+		p.sourceHedgePercentile = Double.parseDouble( System.getProperty( "sourceHedgePercentile", "0" ) );
+		p.sourceHedgeBudget = Double.parseDouble( System.getProperty( "sourceHedgeBudget", "0.05" ) );
+		p.sourceReadAhead = Integer.parseInt( System.getProperty( "sourceReadAhead", "16" ) );
+		final long maxMemoryMB = Runtime.getRuntime().maxMemory() >> 20;
+		p.sourceCacheSize = Long.parseLong( System.getProperty( "sourceCacheSize", Long.toString( maxMemoryMB / 4 ) ) );
+		p.sourceEncodedCacheSize = Long.parseLong( System.getProperty( "sourceEncodedCacheSize", Long.toString( maxMemoryMB / 4 ) ) );
+		p.sourceCacheOffHeap = Boolean.parseBoolean( System.getProperty( "sourceCacheOffHeap", "false" ) );
+		p.sourceCacheDirectory = System.getProperty( "sourceCacheDirectory", "" );
 		p.sourceResXY = Double.parseDouble( System.getProperty( "sourceResXY", "1.0" ) );
 		p.sourceResZ = Double.parseDouble( System.getProperty( "sourceResZ", "1.0" ) );
 		
-		final double scaleZDiv = scaleXYDiv * p.sourceResXY / p.sourceResZ;
+		p.sourceMaxScaleLevel = Long.parseLong( System.getProperty(
+				"sourceMaxScaleLevel",
+				Long.toString( Math.max(
+						p.sourceScaleLevel,
+						maxScaleLevel( p.sourceWidth, p.sourceHeight, p.sourceTileWidth, p.sourceTileHeight ) ) ) ) );
+		p.exportResXY = Double.parseDouble( System.getProperty(
+				"exportResXY",
+				Double.toString( p.sourceResXY * ( 1L << p.sourceScaleLevel ) ) ) );
+		
+		final double scaleXYDiv = p.exportResXY / p.sourceResXY;
+		final double scaleZDiv = p.exportResXY / p.sourceResZ;
 		
 		/* export */
 		final long minX = Long.parseLong( System.getProperty( "minX", "0" ) );
@@ -210,29 +349,38 @@ public class TileCATMAID
 				new long[]{ minX, minY, minZ },
 				new long[]{ minX + width - 1, minY + height - 1, minZ + depth - 1 } );
 		final FinalDimensions orientedSourceInterval;
-		final String orientation = System.getProperty( "orientation", "xy" );
-		if ( orientation.equalsIgnoreCase( "xz" ) )
+		final String[] orientations = System.getProperty( "orientation", "xy" ).split( "," );
+		p.orientations = new Orientation[ orientations.length ];
+		for ( int i = 0; i < orientations.length; ++i )
+		{
+			final String orientation = orientations[ i ].trim();
+			if ( orientation.equalsIgnoreCase( "xz" ) )
+				p.orientations[ i ] = Orientation.XZ;
+			else if ( orientation.equalsIgnoreCase( "zy" ) )
+				p.orientations[ i ] = Orientation.ZY;
+			else
+				p.orientations[ i ] = Orientation.XY;
+		}
+		p.orientation = p.orientations[ 0 ];
+		if ( p.orientation == Orientation.XZ )
 		{
-			p.orientation = Orientation.XZ;
 			orientedSourceInterval = new FinalDimensions(
-					p.sourceInterval.dimension( 0 ) / scaleXYDiv,
+					( long )( p.sourceInterval.dimension( 0 ) / scaleXYDiv ),
 					( long )( p.sourceInterval.dimension( 2 ) / scaleZDiv ),
-					p.sourceInterval.dimension( 1 ) / scaleXYDiv );
+					( long )( p.sourceInterval.dimension( 1 ) / scaleXYDiv ) );
 		}
-		else if ( orientation.equalsIgnoreCase( "zy" ) )
+		else if ( p.orientation == Orientation.ZY )
 		{
-			p.orientation = Orientation.ZY;
 			orientedSourceInterval = new FinalDimensions(
 					( long )( p.sourceInterval.dimension( 2 ) / scaleZDiv ),
-					p.sourceInterval.dimension( 1 ) / scaleXYDiv,
-					p.sourceInterval.dimension( 0 ) / scaleXYDiv );
+					( long )( p.sourceInterval.dimension( 1 ) / scaleXYDiv ),
+					( long )( p.sourceInterval.dimension( 0 ) / scaleXYDiv ) );
 		}
 		else
 		{
-			p.orientation = Orientation.XY;
 			orientedSourceInterval = new FinalDimensions(
-					p.sourceInterval.dimension( 0 ) / scaleXYDiv,
-					p.sourceInterval.dimension( 1 ) / scaleXYDiv,
+					( long )( p.sourceInterval.dimension( 0 ) / scaleXYDiv ),
+					( long )( p.sourceInterval.dimension( 1 ) / scaleXYDiv ),
 					( long )( p.sourceInterval.dimension( 2 ) / scaleZDiv ) );
 		}
 		
@@ -267,9 +415,64 @@ public class TileCATMAID
 		else
 			p.interpolation = Interpolation.NN;
 		
+		p.numThreads = Integer.parseInt( System.getProperty( "numThreads", "1" ) );
+		p.writeBehind = Integer.parseInt( System.getProperty( "writeBehind", "0" ) );
+		p.packTiles = Boolean.parseBoolean( System.getProperty( "packTiles", "false" ) );
+		p.volumePath = System.getProperty( "exportVolumePath", "" );
+		p.volumeBlockDepth = Integer.parseInt( System.getProperty( "exportVolumeBlockDepth", "64" ) );
+		p.volumeCompression = System.getProperty( "exportVolumeCompression", "gzip" );
+		p.sectionPath = System.getProperty( "exportSectionPath", "" );
+		p.sweepBlockSize = Long.parseLong( System.getProperty( "sweepBlockSize", "256" ) );
+		if ( p.orientations.length > 1 && ( p.volumePath.length() > 0 || p.sectionPath.length() > 0 || p.packTiles ) )
+		{
+			/* several orientations write into many sections at once */
+			System.out.println( "exportVolumePath, exportSectionPath, and packTiles are not supported for several orientations, ignoring them" );
+			p.volumePath = "";
+			p.sectionPath = "";
+			p.packTiles = false;
+		}
+		
 		return p;
 	}
 	
+	/**
+	 * Find the coarsest scale level of a CATMAID stack whose resolution is
+	 * at least as fine as the requested scale.
+	 * 
+	 * @param scaleXY requested <em>x,y</em>-scale relative to scale level 0
+	 * @param maxS coarsest available scale level
+	 * @return
+	 */
+	static public long mipmapLevel( final double scaleXY, final long maxS )
+	{
+		long s = 0;
+		while ( s < maxS && 1.0 / ( 1L << ( s + 1 ) ) >= scaleXY )
+			++s;
+		return s;
+	}
+	
+	/**
+	 * Find the coarsest scale level of a CATMAID stack, i.e. the first
+	 * level that fits into a single tile.
+	 * 
+	 * @param width of scale level 0 in pixels
+	 * @param height of scale level 0 in pixels
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @return
+	 */
+	static public long maxScaleLevel(
+			final long width,
+			final long height,
+			final int tileWidth,
+			final int tileHeight )
+	{
+		long s = 0;
+		while ( ( width >> s ) > tileWidth || ( height >> s ) > tileHeight )
+			++s;
+		return s;
+	}
+	
 	/**
 	 * Create a {@link Tiler} from a CATMAID stack.
 	 * 
@@ -304,6 +507,276 @@ public class TileCATMAID
 			final RealLocalizable offset,
 			final Interpolation interpolation )
 	{
+		return fromCATMAID(
+				urlFormat,
+				width,
+				height,
+				depth,
+				1.0 / ( 1L << s ),
+				s,
+				tileWidth,
+				tileHeight,
+				resXY,
+				resZ,
+				offset,
+				interpolation );
+	}
+	
+	/**
+	 * Create a {@link Tiler} from a CATMAID stack at an arbitrary
+	 * <em>x,y</em>-scale.  The source is read from the coarsest scale level
+	 * that is at least as fine as <code>scaleXY</code>
+	 * ({@link #mipmapLevel(double, long)}), so exports at reduced resolution
+	 * do not download and decode more pixels than necessary.
+	 * 
+	 * @param urlFormat
+	 * @param width	of scale level 0 in pixels
+	 * @param height of scale level 0 in pixels
+	 * @param depth	of scale level 0 in pixels
+	 * @param scaleXY <em>x,y</em>-scale of the export relative to scale
+	 * 		level 0, e.g. 0.25 for scale level 2
+	 * @param maxS coarsest available scale level
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param resXY <em>x,y</em>-resolution
+	 * @param resZ <em>z</em>-resolution
+	 * @param real valued offset in CATMAID scale level 0 pixels
+	 * @param interpolation
+	 *  
+	 * @return
+	 */
+	static public Tiler fromCATMAID(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final double scaleXY,
+			final long maxS,
+			final int tileWidth,
+			final int tileHeight,
+			final double resXY,
+			final double resZ,
+			final RealLocalizable offset,
+			final Interpolation interpolation )
+	{
+		return fromCATMAID(
+				urlFormat,
+				width,
+				height,
+				depth,
+				scaleXY,
+				maxS,
+				tileWidth,
+				tileHeight,
+				1,
+				resXY,
+				resZ,
+				offset,
+				interpolation );
+	}
+	
+	/**
+	 * Create a {@link Tiler} from a CATMAID stack at an arbitrary
+	 * <em>x,y</em>-scale, requesting source tiles in super-tiles of
+	 * superTileSize&times;superTileSize tiles.
+	 * 
+	 * @param urlFormat
+	 * @param width	of scale level 0 in pixels
+	 * @param height of scale level 0 in pixels
+	 * @param depth	of scale level 0 in pixels
+	 * @param scaleXY <em>x,y</em>-scale of the export relative to scale
+	 * 		level 0, e.g. 0.25 for scale level 2
+	 * @param maxS coarsest available scale level
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param superTileSize number of tiles per side of the super-tiles
+	 * 		that are requested at once, see
+	 * 		{@link CATMAIDRandomAccessibleInterval}
+	 * @param resXY <em>x,y</em>-resolution
+	 * @param resZ <em>z</em>-resolution
+	 * @param real valued offset in CATMAID scale level 0 pixels
+	 * @param interpolation
+	 *  
+	 * @return
+	 */
+	static public Tiler fromCATMAID(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final double scaleXY,
+			final long maxS,
+			final int tileWidth,
+			final int tileHeight,
+			final int superTileSize,
+			final double resXY,
+			final double resZ,
+			final RealLocalizable offset,
+			final Interpolation interpolation )
+	{
+		return fromCATMAID(
+				urlFormat,
+				width,
+				height,
+				depth,
+				scaleXY,
+				maxS,
+				tileWidth,
+				tileHeight,
+				superTileSize,
+				new TileFetcher(),
+				resXY,
+				resZ,
+				offset,
+				interpolation );
+	}
+	
+	/**
+	 * Create a {@link Tiler} from a CATMAID stack at an arbitrary
+	 * <em>x,y</em>-scale, loading source tiles with a given
+	 * {@link TileFetcher}.
+	 * 
+	 * @param urlFormat
+	 * @param width	of scale level 0 in pixels
+	 * @param height of scale level 0 in pixels
+	 * @param depth	of scale level 0 in pixels
+	 * @param scaleXY <em>x,y</em>-scale of the export relative to scale
+	 * 		level 0, e.g. 0.25 for scale level 2
+	 * @param maxS coarsest available scale level
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param superTileSize number of tiles per side of the super-tiles
+	 * 		that are requested at once, see
+	 * 		{@link CATMAIDRandomAccessibleInterval}
+	 * @param fetcher loads encoded source tiles
+	 * @param resXY <em>x,y</em>-resolution
+	 * @param resZ <em>z</em>-resolution
+	 * @param real valued offset in CATMAID scale level 0 pixels
+	 * @param interpolation
+	 *  
+	 * @return
+	 */
+	static public Tiler fromCATMAID(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final double scaleXY,
+			final long maxS,
+			final int tileWidth,
+			final int tileHeight,
+			final int superTileSize,
+			final TileFetcher fetcher,
+			final double resXY,
+			final double resZ,
+			final RealLocalizable offset,
+			final Interpolation interpolation )
+	{
+		return fromCATMAID(
+				urlFormat,
+				width,
+				height,
+				depth,
+				scaleXY,
+				maxS,
+				tileWidth,
+				tileHeight,
+				superTileSize,
+				fetcher,
+				new TileCache(),
+				resXY,
+				resZ,
+				offset,
+				interpolation );
+	}
+	
+	/**
+	 * Create a {@link Tiler} from a CATMAID stack at an arbitrary
+	 * <em>x,y</em>-scale, loading source tiles with a given
+	 * {@link TileFetcher} into a given {@link TileCache}.
+	 * 
+	 * @param urlFormat
+	 * @param width	of scale level 0 in pixels
+	 * @param height of scale level 0 in pixels
+	 * @param depth	of scale level 0 in pixels
+	 * @param scaleXY <em>x,y</em>-scale of the export relative to scale
+	 * 		level 0, e.g. 0.25 for scale level 2
+	 * @param maxS coarsest available scale level
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param superTileSize number of tiles per side of the super-tiles
+	 * 		that are requested at once, see
+	 * 		{@link CATMAIDRandomAccessibleInterval}
+	 * @param fetcher loads encoded source tiles
+	 * @param cache keeps decoded and encoded source tiles
+	 * @param resXY <em>x,y</em>-resolution
+	 * @param resZ <em>z</em>-resolution
+	 * @param real valued offset in CATMAID scale level 0 pixels
+	 * @param interpolation
+	 *  
+	 * @return
+	 */
+	static public Tiler fromCATMAID(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final double scaleXY,
+			final long maxS,
+			final int tileWidth,
+			final int tileHeight,
+			final int superTileSize,
+			final TileFetcher fetcher,
+			final TileCache cache,
+			final double resXY,
+			final double resZ,
+			final RealLocalizable offset,
+			final Interpolation interpolation )
+	{
+		/* scale and re-raster */
+		final long s = mipmapLevel( scaleXY, maxS );
+		final double levelScaleXY = scaleXY * ( 1L << s );
+		final double scaleZ = resZ / resXY * scaleXY;
+		
+		final double offsetX = offset.getDoublePosition( 0 ) * scaleXY;
+		final double offsetY = offset.getDoublePosition( 1 ) * scaleXY;
+		final double offsetZ = offset.getDoublePosition( 2 ) * scaleZ;
+		
+		final FinalInterval scaledInterval = new FinalInterval(
+				( long )( scaleXY * width - offsetX ),
+				( long )( scaleXY * height - offsetY ),
+				( long )( scaleZ * depth - offsetZ ) );
+		
+		/* sampling at integer x,y-positions, interpolate in z only */
+		if ( levelScaleXY == 1.0 && ZScaledCATMAIDRandomAccessibleInterval.isSupported( offsetX, offsetY, interpolation ) )
+		{
+			final ZScaledCATMAIDRandomAccessibleInterval zScaledStack =
+					new ZScaledCATMAIDRandomAccessibleInterval(
+							urlFormat,
+							width,
+							height,
+							depth,
+							s,
+							tileWidth,
+							tileHeight,
+							superTileSize,
+							fetcher,
+							cache,
+							scaleZ,
+							offsetZ,
+							interpolation );
+			final RandomAccessibleInterval< ARGBType > scaled =
+					Views.interval(
+							Views.translate(
+									zScaledStack,
+									-ZScaledCATMAIDRandomAccessibleInterval.shift( offsetX ),
+									-ZScaledCATMAIDRandomAccessibleInterval.shift( offsetY ),
+									0 ),
+							scaledInterval );
+			
+			return new Tiler( scaled );
+		}
+		
 		final CATMAIDRandomAccessibleInterval catmaidStack =
 				new CATMAIDRandomAccessibleInterval(
 						urlFormat,
@@ -312,43 +785,177 @@ public class TileCATMAID
 						depth,
 						s,
 						tileWidth,
-						tileHeight );
-
-		/* scale and re-raster */
-		final double scaleXY = 1.0 / ( 1 << s );
+						tileHeight,
+						superTileSize,
+						fetcher,
+						cache );
+		
+		return fromSource(
+				catmaidStack,
+				s,
+				width,
+				height,
+				depth,
+				scaleXY,
+				resXY,
+				resZ,
+				offset,
+				interpolation );
+	}
+	
+	
+	/**
+	 * Create a {@link Tiler} from any source through the same scaling,
+	 * re-rastering, and interpolation as
+	 * {@link #fromCATMAID(String, long, long, long, double, long, int, int, int, TileFetcher, TileCache, double, double, RealLocalizable, Interpolation)}.
+	 * 
+	 * @param source scale level s of the source stack, i.e. scaled by
+	 * 		1/2<sup>s</sup> in <em>x,y</em> relative to scale level 0
+	 * @param s
+	 * @param width	of scale level 0 in pixels
+	 * @param height of scale level 0 in pixels
+	 * @param depth	of scale level 0 in pixels
+	 * @param scaleXY <em>x,y</em>-scale of the export relative to scale
+	 * 		level 0
+	 * @param resXY <em>x,y</em>-resolution
+	 * @param resZ <em>z</em>-resolution
+	 * @param real valued offset in scale level 0 pixels
+	 * @param interpolation
+	 *  
+	 * @return
+	 */
+	static public Tiler fromSource(
+			final RandomAccessibleInterval< ARGBType > source,
+			final long s,
+			final long width,
+			final long height,
+			final long depth,
+			final double scaleXY,
+			final double resXY,
+			final double resZ,
+			final RealLocalizable offset,
+			final Interpolation interpolation )
+	{
+		return fromSource( source, s, false, width, height, depth, scaleXY, resXY, resZ, offset, interpolation );
+	}
+	
+	
+	/**
+	 * Create a {@link Tiler} from any source like
+	 * {@link #fromSource(RandomAccessibleInterval, long, long, long, long, double, double, double, RealLocalizable, Interpolation)}
+	 * whose scale level s may also be scaled by 1/2<sup>s</sup> in
+	 * <em>z</em>.
+	 * 
+	 * @param isotropic source is scaled by 1/2<sup>s</sup> in <em>z</em>
+	 */
+	static public Tiler fromSource(
+			final RandomAccessibleInterval< ARGBType > source,
+			final long s,
+			final boolean isotropic,
+			final long width,
+			final long height,
+			final long depth,
+			final double scaleXY,
+			final double resXY,
+			final double resZ,
+			final RealLocalizable offset,
+			final Interpolation interpolation )
+	{
+		final double levelScaleXY = scaleXY * ( 1L << s );
 		final double scaleZ = resZ / resXY * scaleXY;
+		final double levelScaleZ = isotropic ? scaleZ * ( 1L << s ) : scaleZ;
 		
 		final double offsetX = offset.getDoublePosition( 0 ) * scaleXY;
 		final double offsetY = offset.getDoublePosition( 1 ) * scaleXY;
 		final double offsetZ = offset.getDoublePosition( 2 ) * scaleZ;
 		
+		final FinalInterval scaledInterval = new FinalInterval(
+				( long )( scaleXY * width - offsetX ),
+				( long )( scaleXY * height - offsetY ),
+				( long )( scaleZ * depth - offsetZ ) );
+		
 		final AffineTransform3D transform = new AffineTransform3D();
 		transform.set(
-				1, 0, 0, -offsetX,
-				0, 1, 0, -offsetY,
-				0, 0, scaleZ, -offsetZ );
+				levelScaleXY, 0, 0, -offsetX,
+				0, levelScaleXY, 0, -offsetY,
+				0, 0, levelScaleZ, -offsetZ );
 		final RealRandomAccessible< ARGBType > interpolant;
 		switch ( interpolation )
 		{
 		case NL:
-			interpolant = Views.interpolate( catmaidStack, new NLinearInterpolatorARGBFactory() );
+			interpolant = Views.interpolate( source, new NLinearInterpolatorARGBFactory() );
 			break;
 		default:
-			interpolant = Views.interpolate( catmaidStack, new NearestNeighborInterpolatorFactory< ARGBType >() );
+			interpolant = Views.interpolate( source, new NearestNeighborInterpolatorFactory< ARGBType >() );
 		}
 		final RandomAccessible< ARGBType > scaledInterpolant = RealViews.affine( interpolant, transform );
-		final RandomAccessibleInterval< ARGBType > scaled =
-				Views.interval(
-						scaledInterpolant,
-						new FinalInterval(
-								( long )( scaleXY * width - offsetX ),
-								( long )( scaleXY * height - offsetY ),
-								( long )( scaleZ * depth - offsetZ ) ) );
+		final RandomAccessibleInterval< ARGBType > scaled = Views.interval( scaledInterpolant, scaledInterval );
 		
 		return new Tiler( scaled );
 	}
 	
 	
+	/**
+	 * Create a {@link Tiler} from a local {@link N5Volume} with scale level
+	 * datasets "s0", "s1", ... that are downsampled by 2<sup>s</sup> in
+	 * <em>x,y</em> and optionally in <em>z</em>, e.g. as generated by
+	 * {@link ScaleCATMAID}.  The coarsest level that is at least as fine as
+	 * the export is read.
+	 * 
+	 * @param volume
+	 * @param scaleXY <em>x,y</em>-scale of the export relative to scale
+	 * 		level 0
+	 * @param cacheCapacity maximum size of cached blocks in bytes
+	 * @param resXY <em>x,y</em>-resolution
+	 * @param resZ <em>z</em>-resolution
+	 * @param real valued offset in scale level 0 pixels
+	 * @param interpolation
+	 *  
+	 * @return
+	 */
+	static public Tiler fromN5(
+			final N5Volume volume,
+			final double scaleXY,
+			final long cacheCapacity,
+			final double resXY,
+			final double resZ,
+			final RealLocalizable offset,
+			final Interpolation interpolation ) throws IOException
+	{
+		final N5Volume.Dataset s0 = volume.openDataset( "s0" );
+		long maxS = 0;
+		while ( volume.exists( "s" + ( maxS + 1 ) ) )
+			++maxS;
+		long s = mipmapLevel( scaleXY, maxS );
+		
+		/* levels scaled in z must not be coarser than the export in z */
+		final boolean isotropic = maxS > 0 && volume.openDataset( "s1" ).dimensions[ 2 ] < s0.dimensions[ 2 ];
+		if ( isotropic )
+		{
+			final double scaleZ = resZ / resXY * scaleXY;
+			while ( s > 0 && ( 1L << s ) * scaleZ > 1.0 )
+				--s;
+		}
+		final N5RandomAccessibleInterval source = new N5RandomAccessibleInterval(
+				volume,
+				volume.openDataset( "s" + s ),
+				cacheCapacity );
+		
+		return fromSource(
+				source,
+				s,
+				isotropic,
+				s0.dimensions[ 0 ],
+				s0.dimensions[ 1 ],
+				s0.dimensions[ 2 ],
+				scaleXY,
+				resXY,
+				resZ,
+				offset,
+				interpolation );
+	}
+	
+	
 	
 	
 	final static public void main( final String[] args ) throws Exception
@@ -360,26 +967,171 @@ public class TileCATMAID
 		final RealPoint min = new RealPoint( 3 );
 		p.sourceInterval.min( min );
 		
-		final int scaleXYDiv = 1 << p.sourceScaleLevel;
-		final double scaleZDiv = scaleXYDiv * p.sourceResXY / p.sourceResZ;
+		final double scaleXYDiv = p.exportResXY / p.sourceResXY;
+		final double scaleZDiv = p.exportResXY / p.sourceResZ;
 		
 		final FinalInterval cropDimensions = new FinalInterval(
-				p.sourceInterval.dimension( 0 ) / scaleXYDiv,
-				p.sourceInterval.dimension( 1 ) / scaleXYDiv,
+				( long )( p.sourceInterval.dimension( 0 ) / scaleXYDiv ),
+				( long )( p.sourceInterval.dimension( 1 ) / scaleXYDiv ),
 				( long )( p.sourceInterval.dimension( 2 ) / scaleZDiv ) );
 		
-		fromCATMAID(
-				p.sourceUrlFormat,
-				p.sourceWidth,
-				p.sourceHeight,
-				p.sourceDepth,
-				p.sourceScaleLevel,
-				p.sourceTileWidth,
-				p.sourceTileHeight,
-				p.sourceResXY,
-				p.sourceResZ,
-				min,
-				p.interpolation ).tile(
+		final TileFetcher fetcher;
+		final TileCache cache;
+		final Tiler tiler;
+		if ( p.sourceVolumePath.length() > 0 )
+		{
+			fetcher = null;
+			cache = null;
+			tiler = fromN5(
+					new N5Volume( new File( p.sourceVolumePath ) ),
+					1.0 / scaleXYDiv,
+					p.sourceCacheSize << 20,
+					p.sourceResXY,
+					p.sourceResZ,
+					min,
+					p.interpolation );
+		}
+		else
+		{
+			if ( LocalTileFetcher.isLocal( p.sourceUrlFormat ) )
+				fetcher = new LocalTileFetcher( p.sourceReadAhead, p.numThreads );
+			else
+				fetcher = new TileFetcher(
+						1,
+						p.numThreads,
+						p.sourceTimeout,
+						3,
+						p.sourceHedgePercentile,
+						p.sourceHedgeBudget );
+			final OffHeapTileStore store;
+			if ( p.sourceCacheOffHeap )
+			{
+				/* headroom for evicted tiles that random accesses still use or
+				 * that are not yet collected */
+				final int tileLength = p.sourceTileWidth * p.sourceTileHeight;
+				store = new OffHeapTileStore(
+						tileLength,
+						( p.sourceCacheSize << 20 ) + Math.max( ( p.sourceCacheSize << 20 ) / 8, 64L * 4 * tileLength ),
+						p.sourceCacheDirectory.length() == 0 ? null : new File( p.sourceCacheDirectory ) );
+			}
+			else
+				store = null;
+			cache = new TileCache( p.sourceCacheSize << 20, p.sourceEncodedCacheSize << 20, store );
+		
+			tiler = fromCATMAID(
+					p.sourceUrlFormat,
+					p.sourceWidth,
+					p.sourceHeight,
+					p.sourceDepth,
+					1.0 / scaleXYDiv,
+					p.sourceMaxScaleLevel,
+					p.sourceTileWidth,
+					p.sourceTileHeight,
+					p.sourceSuperTileSize,
+					fetcher,
+					cache,
+					p.sourceResXY,
+					p.sourceResZ,
+					min,
+					p.interpolation );
+		
+		}
+		
+		final N5Export volume;
+		if ( p.volumePath.length() > 0 )
+		{
+			final Interval volumeInterval = Tiler.orient( cropDimensions, p.orientation );
+			volume = new N5Export(
+					new N5Volume( new File( p.volumePath ) ),
+					"s0",
+					Intervals.dimensionsAsLongArray( volumeInterval ),
+					p.tileWidth,
+					p.tileHeight,
+					p.volumeBlockDepth,
+					p.type,
+					p.volumeCompression );
+			tiler.setVolume( volume );
+		}
+		else
+			volume = null;
+		
+		final SectionStore sections;
+		if ( p.sectionPath.length() > 0 )
+		{
+			final Interval sectionInterval = Tiler.orient( cropDimensions, p.orientation );
+			sections = new SectionStore(
+					new File( p.sectionPath ),
+					sectionInterval.dimension( 0 ),
+					sectionInterval.dimension( 1 ),
+					p.tileWidth,
+					p.tileHeight,
+					p.type );
+			tiler.setSections( sections );
+		}
+		else
+			sections = null;
+		
+		org.catmaid.Util.setTileSink( p.packTiles ? new PackTileSink() : null );
+		org.catmaid.Util.setWriteBehind( p.writeBehind );
+		try
+		{
+			if ( p.orientations.length > 1 )
+			{
+				final String[] exportPaths = new String[ p.orientations.length ];
+				for ( int i = 0; i < exportPaths.length; ++i )
+					exportPaths[ i ] = p.exportPath + "/" + p.orientations[ i ].name().toLowerCase();
+				final ExecutorService service = p.numThreads > 1 ? Executors.newFixedThreadPool( p.numThreads ) : null;
+				try
+				{
+					tiler.tile(
+							cropDimensions,
+							p.orientations,
+							exportPaths,
+							p.tileWidth,
+							p.tileHeight,
+							p.sweepBlockSize << 20,
+							p.tilePattern,
+							p.format,
+							p.quality,
+							p.type,
+							service );
+				}
+				finally
+				{
+					if ( service != null )
+						service.shutdown();
+				}
+			}
+			else if ( p.numThreads > 1 )
+			{
+				final ExecutorService service = Executors.newFixedThreadPool( p.numThreads );
+				try
+				{
+					tiler.tile(
+							cropDimensions,
+							p.orientation,
+							p.tileWidth,
+							p.tileHeight,
+							p.minZ,
+							p.maxZ,
+							p.minR,
+							p.maxR,
+							p.minC,
+							p.maxC,
+							p.exportPath,
+							p.tilePattern,
+							p.format,
+							p.quality,
+							p.type,
+							service );
+				}
+				finally
+				{
+					service.shutdown();
+				}
+			}
+			else
+				tiler.tile(
 						cropDimensions,
 						p.orientation,
 						p.tileWidth,
@@ -395,5 +1147,57 @@ public class TileCATMAID
 						p.format,
 						p.quality,
 						p.type );
+		}
+		finally
+		{
+			try
+			{
+				if ( volume != null )
+					volume.close();
+			}
+			finally
+			{
+				if ( sections != null )
+					sections.close();
+				org.catmaid.Util.close();
+			}
+		}
+		
+		if ( fetcher == null )
+			return;
+		
+		if ( fetcher instanceof LocalTileFetcher )
+		{
+			final LocalTileFetcher localFetcher = ( LocalTileFetcher )fetcher;
+			localFetcher.close();
+			System.out.println(
+					"source read-ahead: " + localFetcher.getReadAheads() + " tiles read ahead, " +
+					localFetcher.getReadAheadHits() + " used" );
+		}
+		else
+			System.out.println(
+					"source requests: limit " + fetcher.getLimit() +
+					", latency " + String.format( "%.1f", fetcher.getLatency() ) + "ms" +
+					", " + fetcher.getHedges() + " hedged" );
+		System.out.println( cache.getStatistics() );
+		
+		long numTiles = 0;
+		if ( p.orientations.length > 1 )
+		{
+			for ( final Tiler.Orientation orientation : p.orientations )
+			{
+				final Interval orientedInterval = Tiler.orient( cropDimensions, orientation );
+				numTiles +=
+						orientedInterval.dimension( 2 ) *
+						( ( orientedInterval.dimension( 1 ) + p.tileHeight - 1 ) / p.tileHeight ) *
+						( ( orientedInterval.dimension( 0 ) + p.tileWidth - 1 ) / p.tileWidth );
+			}
+		}
+		else
+			numTiles = ( p.maxZ - p.minZ + 1 ) * ( p.maxR - p.minR + 1 ) * ( p.maxC - p.minC + 1 );
+		final long bytesFetched = CATMAIDRandomAccessibleInterval.getTotalBytesFetched();
+		System.out.println(
+				"fetched " + bytesFetched + " bytes from scale level " + mipmapLevel( 1.0 / scaleXYDiv, p.sourceMaxScaleLevel ) +
+				", " + ( numTiles > 0 ? bytesFetched / numTiles : 0 ) + " bytes per export tile" );
 	}
 }
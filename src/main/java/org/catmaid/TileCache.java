@@ -0,0 +1,232 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two-tier least recently used tile cache.  The hot tier keeps decoded
+ * pixels, the cold tier keeps the encoded bytes as loaded from the source,
+ * typically an order of magnitude smaller.  Tiles evicted from the hot tier
+ * remain in the cold tier and are decoded again when they are requested.
+ * Both tiers are bounded by their size in bytes.  Decoded pixels are
+ * {@link IntBuffer IntBuffers} that wrap arrays on the heap or, with an
+ * {@link OffHeapTileStore}, live outside of the heap.
+ *
+ * <p>All methods synchronize on the cache, callers can synchronize on it
+ * too for compound operations.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class TileCache
+{
+	final protected long hotCapacity, coldCapacity;
+	protected long hotBytes = 0, coldBytes = 0;
+	final protected OffHeapTileStore store;
+
+	final protected LinkedHashMap< Object, IntBuffer > hot = new LinkedHashMap< Object, IntBuffer >( 16, 0.75f, true );
+	final protected LinkedHashMap< Object, byte[] > cold = new LinkedHashMap< Object, byte[] >( 16, 0.75f, true );
+
+	protected long hotHits = 0, coldHits = 0, misses = 0;
+	protected long coldDecodes = 0, missDecodes = 0;
+	protected long coldDecodeNanos = 0, missDecodeNanos = 0;
+
+	/**
+	 * @param hotCapacity size of the hot tier (decoded pixels) in bytes
+	 * @param coldCapacity size of the cold tier (encoded bytes) in bytes
+	 * @param store allocates decoded tiles outside of the heap, null to
+	 * 		allocate them on the heap
+	 */
+	public TileCache( final long hotCapacity, final long coldCapacity, final OffHeapTileStore store )
+	{
+		this.hotCapacity = hotCapacity;
+		this.coldCapacity = coldCapacity;
+		this.store = store;
+	}
+
+	/**
+	 * @param hotCapacity size of the hot tier (decoded pixels) in bytes
+	 * @param coldCapacity size of the cold tier (encoded bytes) in bytes
+	 */
+	public TileCache( final long hotCapacity, final long coldCapacity )
+	{
+		this( hotCapacity, coldCapacity, null );
+	}
+
+	/**
+	 * Create a cache that uses a quarter of the maximum heap size for each
+	 * tier.
+	 */
+	public TileCache()
+	{
+		this( Runtime.getRuntime().maxMemory() / 4, Runtime.getRuntime().maxMemory() / 4 );
+	}
+
+	/**
+	 * Allocate a buffer for decoded pixels, outside of the heap if this
+	 * cache has an {@link OffHeapTileStore} for tiles of that length.
+	 * 
+	 * @return a buffer of the given length whose contents are undefined if
+	 * 		it does not {@link IntBuffer#hasArray() have an array}
+	 */
+	public IntBuffer allocate( final int length )
+	{
+		if ( store != null && store.getSlotLength() == length )
+			return store.allocate();
+		else
+			return IntBuffer.wrap( new int[ length ] );
+	}
+
+	/**
+	 * @return the decoded pixels of a tile or null if they are not in the
+	 * 		hot tier
+	 */
+	synchronized public IntBuffer getDecoded( final Object key )
+	{
+		final IntBuffer pixels = hot.get( key );
+		if ( pixels != null )
+			++hotHits;
+		return pixels;
+	}
+
+	/**
+	 * @return the encoded bytes of a tile or null if they are not in the
+	 * 		cold tier, a null result counts as a miss
+	 */
+	synchronized public byte[] getEncoded( final Object key )
+	{
+		final byte[] bytes = cold.get( key );
+		if ( bytes != null )
+			++coldHits;
+		else
+			++misses;
+		return bytes;
+	}
+
+	synchronized public void putDecoded( final Object key, final IntBuffer pixels )
+	{
+		final IntBuffer old = hot.put( key, pixels );
+		if ( old != null )
+			hotBytes -= 4L * old.capacity();
+		hotBytes += 4L * pixels.capacity();
+		final Iterator< Map.Entry< Object, IntBuffer > > i = hot.entrySet().iterator();
+		while ( hotBytes > hotCapacity && i.hasNext() )
+		{
+			final IntBuffer evicted = i.next().getValue();
+			i.remove();
+			hotBytes -= 4L * evicted.capacity();
+		}
+	}
+
+	synchronized public void putEncoded( final Object key, final byte[] bytes )
+	{
+		final byte[] old = cold.put( key, bytes );
+		if ( old != null )
+			coldBytes -= old.length;
+		coldBytes += bytes.length;
+		final Iterator< Map.Entry< Object, byte[] > > i = cold.entrySet().iterator();
+		while ( coldBytes > coldCapacity && i.hasNext() )
+		{
+			final byte[] evicted = i.next().getValue();
+			i.remove();
+			coldBytes -= evicted.length;
+		}
+	}
+
+	/**
+	 * Record the time spent decoding a tile.
+	 *
+	 * @param fromCold true if the tile was promoted from the cold tier, false
+	 * 		if it was loaded from the source
+	 * @param nanos
+	 */
+	synchronized public void recordDecode( final boolean fromCold, final long nanos )
+	{
+		if ( fromCold )
+		{
+			++coldDecodes;
+			coldDecodeNanos += nanos;
+		}
+		else
+		{
+			++missDecodes;
+			missDecodeNanos += nanos;
+		}
+	}
+
+	/**
+	 * @return true if a tile is in the hot or cold tier, does not count as
+	 * 		a request
+	 */
+	synchronized public boolean contains( final Object key )
+	{
+		return hot.containsKey( key ) || cold.containsKey( key );
+	}
+
+	synchronized public int numDecoded()
+	{
+		return hot.size();
+	}
+
+	synchronized public int numEncoded()
+	{
+		return cold.size();
+	}
+
+	synchronized public long getHotHits()
+	{
+		return hotHits;
+	}
+
+	synchronized public long getColdHits()
+	{
+		return coldHits;
+	}
+
+	synchronized public long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return hit rates and decode cost per tier
+	 */
+	synchronized public String getStatistics()
+	{
+		final long requests = hotHits + coldHits + misses;
+		return String.format(
+				"tile cache: %d requests, hot %.1f%% (%d tiles, %d MB), cold %.1f%% (%d tiles, %d MB), miss %.1f%%, " +
+				"decode %.2fms per cold hit, %.2fms per miss",
+				requests,
+				requests == 0 ? 0.0 : 100.0 * hotHits / requests,
+				hot.size(),
+				hotBytes >> 20,
+				requests == 0 ? 0.0 : 100.0 * coldHits / requests,
+				cold.size(),
+				coldBytes >> 20,
+				requests == 0 ? 0.0 : 100.0 * misses / requests,
+				coldDecodes == 0 ? 0.0 : coldDecodeNanos / 1000000.0 / coldDecodes,
+				missDecodes == 0 ? 0.0 : missDecodeNanos / 1000000.0 / missDecodes ) +
+				( store == null ? "" : String.format(
+						", off-heap store %d MB, %d heap fallbacks",
+						store.getSize() >> 20,
+						store.getHeapFallbacks() ) );
+	}
+}
@@ -0,0 +1,526 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads encoded tiles from URLs and limits the number of concurrent
+ * requests adaptively (additive increase, multiplicative decrease).  The
+ * limit grows by about one request per round trip as long as the observed
+ * latency stays close to the best latency seen, and is halved on timeouts
+ * and server errors (HTTP 5xx and 429), at most once per average latency.
+ * Such requests are retried up to <code>maxAttempts</code> times before
+ * they fail.  Only HTTP requests are limited, other URLs, e.g. local files,
+ * are read directly.
+ *
+ * <p>Optionally, requests are hedged: if a request has not finished after
+ * the <code>hedgePercentile</code> of recent latencies, a duplicate is sent
+ * and the first response is used.  Hedges are capped at
+ * <code>hedgeBudget</code> times the number of requests.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class TileFetcher
+{
+	/**
+	 * A request failed because the server is overloaded or did not answer
+	 * in time.
+	 */
+	static public class CongestionException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public CongestionException( final String message )
+		{
+			super( message );
+		}
+	}
+
+	/* latency below this multiple of the best latency plus slack (in ms)
+	 * counts as flat */
+	final static protected double LATENCY_TOLERANCE = 2.0;
+	final static protected double LATENCY_SLACK = 5.0;
+
+	final protected int minLimit, maxLimit;
+	final protected int timeout;
+	final protected int maxAttempts;
+
+	protected double limit;
+	protected int inFlight = 0;
+	protected double latency = 0;
+	protected double minLatency = Double.MAX_VALUE;
+	protected long lastDecrease = 0;
+	
+	/* hedging */
+	final static protected int NUM_SAMPLES = 256;
+	final protected double hedgePercentile;
+	final protected double hedgeBudget;
+	final protected double[] samples = new double[ NUM_SAMPLES ];
+	protected long numSamples = 0;
+	protected double hedgeDelay = -1;
+	protected long numRequests = 0;
+	protected long numHedges = 0;
+	protected ExecutorService hedgeService = null;
+
+	/**
+	 * @param minLimit minimum number of concurrent requests
+	 * @param maxLimit maximum number of concurrent requests
+	 * @param timeout connect and read timeout in ms
+	 * @param maxAttempts number of attempts for requests that failed with
+	 * 		a timeout or server error
+	 */
+	public TileFetcher(
+			final int minLimit,
+			final int maxLimit,
+			final int timeout,
+			final int maxAttempts )
+	{
+		this( minLimit, maxLimit, timeout, maxAttempts, 0, 0 );
+	}
+
+	/**
+	 * @param minLimit minimum number of concurrent requests
+	 * @param maxLimit maximum number of concurrent requests
+	 * @param timeout connect and read timeout in ms
+	 * @param maxAttempts number of attempts for requests that failed with
+	 * 		a timeout or server error
+	 * @param hedgePercentile latency percentile after which a request is
+	 * 		hedged, e.g. 0.95, 0 disables hedging
+	 * @param hedgeBudget maximum number of hedges relative to the number
+	 * 		of requests, e.g. 0.05
+	 */
+	public TileFetcher(
+			final int minLimit,
+			final int maxLimit,
+			final int timeout,
+			final int maxAttempts,
+			final double hedgePercentile,
+			final double hedgeBudget )
+	{
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.timeout = timeout;
+		this.maxAttempts = maxAttempts;
+		this.hedgePercentile = hedgePercentile;
+		this.hedgeBudget = hedgeBudget;
+		limit = minLimit;
+	}
+
+	public TileFetcher()
+	{
+		this( 1, 64, 30000, 3 );
+	}
+
+	/**
+	 * @return the current limit of concurrent requests
+	 */
+	synchronized public int getLimit()
+	{
+		return ( int )limit;
+	}
+
+	/**
+	 * @return the number of requests in flight
+	 */
+	synchronized public int getInFlight()
+	{
+		return inFlight;
+	}
+
+	/**
+	 * @return the average latency of recent successful requests in ms
+	 */
+	synchronized public double getLatency()
+	{
+		return latency;
+	}
+
+	/**
+	 * @return the number of hedged requests so far
+	 */
+	synchronized public long getHedges()
+	{
+		return numHedges;
+	}
+
+	/**
+	 * @return the current hedging delay in ms, -1 if not yet known
+	 */
+	synchronized public double getHedgeDelay()
+	{
+		return hedgeDelay;
+	}
+
+	synchronized protected void acquire() throws InterruptedException
+	{
+		while ( inFlight >= ( int )limit )
+			wait();
+		++inFlight;
+	}
+
+	synchronized protected void succeeded( final double ms )
+	{
+		--inFlight;
+		latency = latency == 0 ? ms : 0.9 * latency + 0.1 * ms;
+		if ( ms < minLatency )
+			minLatency = ms;
+		else
+			/* let the baseline follow slow changes of the server */
+			minLatency += 0.001 * ( ms - minLatency );
+		if ( latency <= LATENCY_TOLERANCE * minLatency + LATENCY_SLACK )
+			limit = Math.min( maxLimit, limit + 1.0 / limit );
+		
+		if ( hedgePercentile > 0 )
+		{
+			samples[ ( int )( numSamples++ % NUM_SAMPLES ) ] = ms;
+			if ( numSamples >= 32 && numSamples % 16 == 0 )
+			{
+				final double[] sorted = Arrays.copyOf( samples, ( int )Math.min( numSamples, NUM_SAMPLES ) );
+				Arrays.sort( sorted );
+				hedgeDelay = sorted[ ( int )( hedgePercentile * ( sorted.length - 1 ) ) ];
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Take a slot for a hedge if the budget allows it.  Hedges count as
+	 * requests in flight but are not held back by the limit, the budget
+	 * caps the extra load.
+	 */
+	synchronized protected boolean tryHedge()
+	{
+		if ( numHedges + 1 > hedgeBudget * numRequests )
+			return false;
+		++inFlight;
+		++numHedges;
+		return true;
+	}
+
+	synchronized protected ExecutorService hedgeService()
+	{
+		if ( hedgeService == null )
+			hedgeService = Executors.newCachedThreadPool(
+					new ThreadFactory()
+					{
+						@Override
+						public Thread newThread( final Runnable runnable )
+						{
+							final Thread thread = new Thread( runnable );
+							thread.setDaemon( true );
+							return thread;
+						}
+					} );
+		return hedgeService;
+	}
+
+	synchronized protected void congested()
+	{
+		--inFlight;
+		final long now = System.currentTimeMillis();
+		if ( now - lastDecrease > latency )
+		{
+			limit = Math.max( minLimit, limit * 0.5 );
+			lastDecrease = now;
+		}
+		notifyAll();
+	}
+
+	synchronized protected void failed()
+	{
+		--inFlight;
+		notifyAll();
+	}
+
+	/**
+	 * A request that can be aborted from another thread.
+	 */
+	protected class Request implements Callable< byte[] >
+	{
+		final protected URL url;
+		protected volatile URLConnection connection = null;
+		protected volatile boolean aborted = false;
+
+		public Request( final URL url )
+		{
+			this.url = url;
+		}
+
+		@Override
+		public byte[] call() throws IOException
+		{
+			return fetchOnce( url, this );
+		}
+
+		/**
+		 * Close the connection of a request that is no longer needed such
+		 * that it releases its slot early.
+		 */
+		public void abort()
+		{
+			aborted = true;
+			final URLConnection c = connection;
+			if ( c instanceof HttpURLConnection )
+				( ( HttpURLConnection )c ).disconnect();
+		}
+	}
+
+	protected URLConnection openConnection( final URL url ) throws IOException
+	{
+		final URLConnection connection = url.openConnection();
+		connection.setConnectTimeout( timeout );
+		connection.setReadTimeout( timeout );
+		return connection;
+	}
+
+	/**
+	 * Read all bytes from a connection, fail on HTTP errors.
+	 */
+	protected byte[] read( final URLConnection connection ) throws IOException
+	{
+		if ( connection instanceof HttpURLConnection )
+		{
+			final int code = ( ( HttpURLConnection )connection ).getResponseCode();
+			if ( code >= 500 || code == 429 )
+			{
+				( ( HttpURLConnection )connection ).disconnect();
+				throw new CongestionException( "HTTP " + code + " " + connection.getURL() );
+			}
+		}
+
+		final InputStream in = connection.getInputStream();
+		try
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[ 8192 ];
+			for ( int n = in.read( buffer ); n >= 0; n = in.read( buffer ) )
+				out.write( buffer, 0, n );
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Read all bytes from a URL, fail on HTTP errors.
+	 */
+	protected byte[] read( final URL url ) throws IOException
+	{
+		return read( openConnection( url ) );
+	}
+
+	/**
+	 * Read all bytes from a URL in a slot that was acquired by the caller,
+	 * release the slot and update the limit.
+	 *
+	 * @param url
+	 * @param request the {@link Request} to register the connection with
+	 * 		or null
+	 */
+	protected byte[] fetchOnce( final URL url, final Request request ) throws IOException
+	{
+		final long t = System.nanoTime();
+		try
+		{
+			final URLConnection connection = openConnection( url );
+			if ( request != null )
+			{
+				request.connection = connection;
+				if ( request.aborted )
+					throw new IOException( "aborted loading " + url );
+			}
+			final byte[] bytes = read( connection );
+			succeeded( ( System.nanoTime() - t ) / 1000000.0 );
+			return bytes;
+		}
+		catch ( final SocketTimeoutException e )
+		{
+			congested();
+			throw e;
+		}
+		catch ( final CongestionException e )
+		{
+			congested();
+			throw e;
+		}
+		catch ( final IOException e )
+		{
+			failed();
+			throw e;
+		}
+		catch ( final RuntimeException e )
+		{
+			failed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Like {@link #fetchOnce(URL, Request)} but send a duplicate request if
+	 * the first does not finish within the hedging delay, and return the
+	 * first successful response.  The other request is aborted.
+	 */
+	protected byte[] fetchHedged( final URL url ) throws IOException
+	{
+		final double delay;
+		synchronized ( this )
+		{
+			++numRequests;
+			delay = hedgeDelay;
+		}
+
+		final ExecutorCompletionService< byte[] > completionService = new ExecutorCompletionService< byte[] >( hedgeService() );
+		final ArrayList< Request > requests = new ArrayList< Request >();
+		final ArrayList< Future< byte[] > > futures = new ArrayList< Future< byte[] > >();
+		requests.add( new Request( url ) );
+		futures.add( completionService.submit( requests.get( 0 ) ) );
+		try
+		{
+			Future< byte[] > done = delay < 0 ? completionService.take() : completionService.poll( ( long )Math.ceil( delay ), TimeUnit.MILLISECONDS );
+			if ( done == null )
+			{
+				/* the hedge's slot is taken by tryHedge */
+				if ( tryHedge() )
+				{
+					requests.add( new Request( url ) );
+					futures.add( completionService.submit( requests.get( 1 ) ) );
+				}
+				done = completionService.take();
+			}
+			for ( int pending = futures.size() - 1;; --pending )
+			{
+				try
+				{
+					return done.get();
+				}
+				catch ( final ExecutionException e )
+				{
+					if ( pending == 0 )
+					{
+						if ( e.getCause() instanceof IOException )
+							throw ( IOException )e.getCause();
+						throw new RuntimeException( e.getCause() );
+					}
+					done = completionService.take();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "interrupted loading " + url );
+		}
+		finally
+		{
+			for ( int i = 0; i < futures.size(); ++i )
+				if ( !futures.get( i ).isDone() )
+					requests.get( i ).abort();
+		}
+	}
+
+	/**
+	 * Load all bytes from a URL once the number of requests in flight is
+	 * below the current limit.
+	 *
+	 * @param urlString
+	 * @return
+	 * @throws IOException if the request failed, after
+	 * 		<code>maxAttempts</code> attempts for timeouts and server errors
+	 */
+	public byte[] fetch( final String urlString ) throws IOException
+	{
+		final URL url = new URL( urlString );
+		if ( !url.getProtocol().startsWith( "http" ) )
+			return read( url );
+		
+		IOException lastException = null;
+		for ( int attempt = 0; attempt < maxAttempts; ++attempt )
+		{
+			try
+			{
+				if ( attempt > 0 )
+					Thread.sleep( ( long )Math.max( getLatency(), 100 ) * attempt );
+				acquire();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException( "interrupted loading " + urlString );
+			}
+
+			try
+			{
+				if ( hedgePercentile > 0 )
+					return fetchHedged( url );
+				else
+					return fetchOnce( url, null );
+			}
+			catch ( final SocketTimeoutException e )
+			{
+				lastException = e;
+			}
+			catch ( final CongestionException e )
+			{
+				lastException = e;
+			}
+		}
+		throw lastException;
+	}
+
+	/**
+	 * Load all bytes from a URL into a buffer.  Sources that can map their
+	 * tiles, e.g. {@link LocalTileFetcher}, return the tile without
+	 * copying it to the heap.
+	 *
+	 * @param urlString
+	 * @return a buffer whose remaining bytes are the loaded bytes
+	 * @throws IOException
+	 */
+	public ByteBuffer fetchBuffer( final String urlString ) throws IOException
+	{
+		return ByteBuffer.wrap( fetch( urlString ) );
+	}
+
+	/**
+	 * Hint that a URL will be fetched soon.  This implementation does
+	 * nothing, remote requests are limited and should only be sent when
+	 * needed.
+	 *
+	 * @param urlString
+	 */
+	public void readAhead( final String urlString ) {}
+}
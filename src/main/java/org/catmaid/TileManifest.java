@@ -0,0 +1,231 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The modification times of the scale level 0 tiles of a tile stack,
+ * stored in a text file with one line <code>z r c lastModified</code> per
+ * tile, to find the tiles that changed since the scale pyramid was
+ * generated.  Tiles are expected as files, i.e. not in pack files.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class TileManifest
+{
+	final protected File file;
+
+	/* modification times by ( z, r, c ) */
+	final protected HashMap< List< Long >, Long > times = new HashMap< List< Long >, Long >();
+
+	/**
+	 * Read a manifest, a missing file is an empty manifest.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public TileManifest( final File file ) throws IOException
+	{
+		this.file = file;
+		if ( !file.exists() )
+			return;
+		for ( final long[] entry : readTiles( file, 4 ) )
+			times.put( Arrays.asList( entry[ 0 ], entry[ 1 ], entry[ 2 ] ), entry[ 3 ] );
+	}
+
+	/**
+	 * Read a list of tiles, one tile per line as numbers separated by
+	 * white space or commas.  Empty lines and lines starting with '#' are
+	 * skipped.
+	 *
+	 * @param file
+	 * @param length numbers per line
+	 * @throws IOException
+	 */
+	static public ArrayList< long[] > readTiles( final File file, final int length ) throws IOException
+	{
+		final ArrayList< long[] > tiles = new ArrayList< long[] >();
+		final BufferedReader reader = new BufferedReader( new FileReader( file ) );
+		try
+		{
+			for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+			{
+				line = line.trim();
+				if ( line.length() == 0 || line.startsWith( "#" ) )
+					continue;
+				final String[] fields = line.split( "[\\s,]+" );
+				if ( fields.length != length )
+					throw new IOException( "Invalid line \"" + line + "\" in " + file );
+				final long[] tile = new long[ length ];
+				try
+				{
+					for ( int i = 0; i < length; ++i )
+						tile[ i ] = Long.parseLong( fields[ i ] );
+				}
+				catch ( final NumberFormatException e )
+				{
+					throw new IOException( "Invalid line \"" + line + "\" in " + file );
+				}
+				tiles.add( tile );
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return tiles;
+	}
+
+	static protected String tilePath(
+			final String tileFormat,
+			final int tileWidth,
+			final int tileHeight,
+			final long z,
+			final long r,
+			final long c )
+	{
+		return Util.tilePath( tileFormat, 0, 1.0, c * tileWidth, r * tileHeight, z, tileWidth, tileHeight, r, c );
+	}
+
+	/**
+	 * Compare the scale level 0 tiles of a range of <em>z</em>-sections
+	 * with the manifest and update it.  Tiles are looked up row by row
+	 * until the first missing tile of a row, and rows until the first
+	 * missing row, sections until the first section without tiles that is
+	 * not in the manifest either.  New tiles, modified tiles, and tiles of
+	 * the manifest that do not exist anymore have changed.
+	 *
+	 * @param tileFormat format string addressing tiles including basePath
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param minZ
+	 * @param maxZ
+	 * @return the changed tiles as ( z, r, c )
+	 */
+	public ArrayList< long[] > update(
+			final String tileFormat,
+			final int tileWidth,
+			final int tileHeight,
+			final long minZ,
+			final long maxZ )
+	{
+		long lastZ = Long.MIN_VALUE;
+		for ( final List< Long > key : times.keySet() )
+			lastZ = Math.max( lastZ, key.get( 0 ) );
+
+		final ArrayList< long[] > changed = new ArrayList< long[] >();
+		final HashMap< List< Long >, Long > current = new HashMap< List< Long >, Long >();
+		for ( long z = minZ; z <= maxZ; ++z )
+		{
+			for ( long r = 0; true; ++r )
+			{
+				long c = 0;
+				for ( long lastModified; ( lastModified = new File( tilePath( tileFormat, tileWidth, tileHeight, z, r, c ) ).lastModified() ) != 0; ++c )
+				{
+					final List< Long > key = Arrays.asList( z, r, c );
+					current.put( key, lastModified );
+					final Long time = times.get( key );
+					if ( time == null || time != lastModified )
+						changed.add( new long[]{ z, r, c } );
+				}
+				if ( c == 0 )
+					break;
+			}
+			if ( z >= lastZ && !current.containsKey( Arrays.asList( z, 0L, 0L ) ) )
+				break;
+		}
+
+		/* removed tiles */
+		for ( final Iterator< Map.Entry< List< Long >, Long > > i = times.entrySet().iterator(); i.hasNext(); )
+		{
+			final List< Long > key = i.next().getKey();
+			final long z = key.get( 0 );
+			if ( z >= minZ && z <= maxZ && !current.containsKey( key ) )
+			{
+				changed.add( new long[]{ z, key.get( 1 ), key.get( 2 ) } );
+				i.remove();
+			}
+		}
+		times.putAll( current );
+
+		return changed;
+	}
+
+	/**
+	 * Write the manifest, sorted by z, r, c.  The file is replaced only
+	 * after it was written completely.
+	 *
+	 * @throws IOException
+	 */
+	public void write() throws IOException
+	{
+		final ArrayList< List< Long > > keys = new ArrayList< List< Long > >( times.keySet() );
+		Collections.sort(
+				keys,
+				new Comparator< List< Long > >()
+				{
+					@Override
+					public int compare( final List< Long > a, final List< Long > b )
+					{
+						for ( int i = 0; i < 3; ++i )
+						{
+							final int d = a.get( i ).compareTo( b.get( i ) );
+							if ( d != 0 )
+								return d;
+						}
+						return 0;
+					}
+				} );
+
+		final File parent = file.getAbsoluteFile().getParentFile();
+		Util.mkdirs( parent );
+		final File tmp = new File( parent, file.getName() + ".tmp" );
+		final PrintWriter writer = new PrintWriter( new FileWriter( tmp ) );
+		try
+		{
+			for ( final List< Long > key : keys )
+				writer.println( key.get( 0 ) + " " + key.get( 1 ) + " " + key.get( 2 ) + " " + times.get( key ) );
+		}
+		finally
+		{
+			writer.close();
+		}
+		if ( writer.checkError() )
+			throw new IOException( "Failed writing " + tmp );
+		if ( !tmp.renameTo( file ) )
+		{
+			/* renameTo does not replace existing files on all platforms */
+			file.delete();
+			if ( !tmp.renameTo( file ) )
+				throw new IOException( "Failed replacing " + file );
+		}
+	}
+}
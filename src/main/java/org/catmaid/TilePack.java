@@ -0,0 +1,499 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Archive of encoded tiles in a single file.  Tiles are appended
+ * sequentially and addressed by name through an index that is kept in
+ * memory.  On {@link #flush()} and {@link #close()}, the entries of the
+ * tiles appended since the last index are written to the end of the file,
+ * chained to the previous index and followed by a footer with the offset
+ * of the new one:
+ *
+ * <pre>
+ * (tile bytes* index footer)*
+ *
+ * index:
+ * long end of the previous footer, -1 if there is none
+ * int number of tiles
+ * (UTF name, long offset, int length)*
+ *
+ * footer:
+ * long index offset
+ * int {@link #MAGIC}
+ * </pre>
+ *
+ * <p>The index written by {@link #flush()} also contains the entries of
+ * the last indices of the chain that are not larger than it, which it
+ * replaces, such that the chain has a logarithmic number of indices and
+ * every entry is written a logarithmic number of times.</p>
+ *
+ * <p>New tiles are always appended behind the last footer, such that the
+ * tiles of the last written index remain readable if the process dies
+ * before the next index is written.  Opening a pack whose end is not a
+ * footer recovers the last complete index.  A tile that is written again
+ * shadows its previous version.
+ * {@link #flush()} writes the index without forcing it to the device,
+ * {@link #close()} forces the file to the device, a pack is durable only
+ * after it has been closed.  If shadowed versions take more space than the
+ * current ones, {@link #close()} compacts the pack.  Tiles can be read
+ * while the pack is open.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class TilePack
+{
+	/**
+	 * "CTPK"
+	 */
+	final static public int MAGIC = 0x4354504b;
+
+	final static protected int FOOTER_SIZE = 12;
+
+	static protected class Link
+	{
+		/* end of the footer of the index */
+		final protected long footerEnd;
+		final protected LinkedHashMap< String, long[] > entries;
+
+		protected Link( final long footerEnd, final LinkedHashMap< String, long[] > entries )
+		{
+			this.footerEnd = footerEnd;
+			this.entries = entries;
+		}
+	}
+
+	final protected File file;
+	final protected boolean writable;
+	final protected RandomAccessFile raf;
+	final protected FileChannel channel;
+
+	/* name => { offset, length }, guarded by this */
+	final protected LinkedHashMap< String, long[] > index = new LinkedHashMap< String, long[] >();
+	/* entries of the tiles appended since the last written index */
+	final protected LinkedHashMap< String, long[] > appended = new LinkedHashMap< String, long[] >();
+	/* the written chain of indices, first to last */
+	final protected ArrayList< Link > chain = new ArrayList< Link >();
+	protected long end;
+	/* bytes of tiles that are in the index */
+	protected long live = 0;
+	/* tiles were appended that are not in the written index */
+	protected boolean modified = false;
+	/* the file was changed but not forced to the device */
+	protected boolean unforced = false;
+
+	/**
+	 * Open a pack, a writable pack is created if it does not exist.
+	 *
+	 * @throws IOException if the pack exists but has no valid index
+	 */
+	public TilePack( final File file, final boolean writable ) throws IOException
+	{
+		this.file = file;
+		this.writable = writable;
+		if ( writable )
+			Util.mkdirs( file.getAbsoluteFile().getParentFile() );
+		raf = new RandomAccessFile( file, writable ? "rw" : "r" );
+		channel = raf.getChannel();
+		try
+		{
+			if ( raf.length() == 0 )
+				end = 0;
+			else
+				readIndex();
+		}
+		catch ( final IOException e )
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open an existing pack for reading.
+	 */
+	public TilePack( final File file ) throws IOException
+	{
+		this( file, false );
+	}
+
+	protected void readFully( final ByteBuffer buffer, final long position ) throws IOException
+	{
+		for ( long p = position; buffer.hasRemaining(); )
+		{
+			final int n = channel.read( buffer, p );
+			if ( n < 0 )
+				throw new IOException( "unexpected end of " + file );
+			p += n;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Read the chain of indices whose last footer ends at footerEnd.
+	 *
+	 * @return false if there is no valid chain of indices
+	 */
+	protected boolean readIndex( final long footerEnd ) throws IOException
+	{
+		final ArrayList< Link > links = new ArrayList< Link >();
+		for ( long next = footerEnd; next != -1; )
+		{
+			final long linkEnd = next;
+			if ( next < FOOTER_SIZE )
+				return false;
+			final ByteBuffer footer = ByteBuffer.allocate( FOOTER_SIZE );
+			readFully( footer, next - FOOTER_SIZE );
+			final long indexOffset = footer.getLong();
+			final long indexEnd = next - FOOTER_SIZE;
+			if ( footer.getInt() != MAGIC || indexOffset < 0 || indexEnd - indexOffset < 12 || indexEnd - indexOffset > Integer.MAX_VALUE )
+				return false;
+
+			final ByteBuffer bytes = ByteBuffer.allocate( ( int )( indexEnd - indexOffset ) );
+			readFully( bytes, indexOffset );
+			final DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes.array() ) );
+			final LinkedHashMap< String, long[] > entries = new LinkedHashMap< String, long[] >();
+			try
+			{
+				next = in.readLong();
+				/* previous indices precede this one, which also ends the chain */
+				if ( next != -1 && ( next < FOOTER_SIZE || next > indexOffset ) )
+					return false;
+				final int n = in.readInt();
+				for ( int i = 0; i < n; ++i )
+				{
+					final String name = in.readUTF();
+					final long offset = in.readLong();
+					final int size = in.readInt();
+					if ( offset < 0 || size < 0 || offset + size > indexOffset )
+						return false;
+					entries.put( name, new long[]{ offset, size } );
+				}
+				if ( in.available() != 0 )
+					return false;
+			}
+			catch ( final IOException e )
+			{
+				return false;
+			}
+			links.add( new Link( linkEnd, entries ) );
+		}
+		Collections.reverse( links );
+
+		/* later indices shadow earlier ones */
+		long chainLive = 0;
+		final LinkedHashMap< String, long[] > chainIndex = new LinkedHashMap< String, long[] >();
+		for ( final Link link : links )
+		{
+			for ( final Map.Entry< String, long[] > entry : link.entries.entrySet() )
+			{
+				final long[] shadowed = chainIndex.put( entry.getKey(), entry.getValue() );
+				if ( shadowed != null )
+					chainLive -= shadowed[ 1 ];
+				chainLive += entry.getValue()[ 1 ];
+			}
+		}
+		index.putAll( chainIndex );
+		live = chainLive;
+		chain.addAll( links );
+		return true;
+	}
+
+	/**
+	 * Find the last complete index of a pack that was not closed, scanning
+	 * backwards for a footer.
+	 *
+	 * @return the end of the footer or -1 if there is none
+	 */
+	protected long recoverIndex( final long length ) throws IOException
+	{
+		final ByteBuffer chunk = ByteBuffer.allocate( 1 << 16 );
+		for ( long hi = length; hi >= FOOTER_SIZE; )
+		{
+			final long lo = Math.max( 0, hi - chunk.capacity() );
+			chunk.clear();
+			chunk.limit( ( int )( hi - lo ) );
+			readFully( chunk, lo );
+			for ( int i = chunk.limit() - 4; i >= 0; --i )
+				if ( chunk.getInt( i ) == MAGIC && readIndex( lo + i + 4 ) )
+					return lo + i + 4;
+			if ( lo == 0 )
+				break;
+			/* a magic number may span the chunk boundary */
+			hi = lo + 3;
+		}
+		return -1;
+	}
+
+	protected void readIndex() throws IOException
+	{
+		final long length = raf.length();
+		if ( !readIndex( length ) )
+		{
+			final long footerEnd = recoverIndex( length );
+			if ( footerEnd < 0 )
+				throw new IOException( file + " is not a tile pack" );
+			System.out.println( "recovered " + index.size() + " tiles of " + file + " that was not closed" );
+		}
+		/* append behind the footer, such that it stays valid */
+		end = length;
+	}
+
+	/**
+	 * Write an index at end, chained to the index whose footer ends at
+	 * previous.
+	 */
+	static protected void writeIndex(
+			final FileChannel channel,
+			final Map< String, long[] > index,
+			final long end,
+			final long previous ) throws IOException
+	{
+		channel.position( end );
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream( Channels.newOutputStream( channel ), 1 << 16 ) );
+		out.writeLong( previous );
+		out.writeInt( index.size() );
+		for ( final Map.Entry< String, long[] > entry : index.entrySet() )
+		{
+			out.writeUTF( entry.getKey() );
+			out.writeLong( entry.getValue()[ 0 ] );
+			out.writeInt( ( int )entry.getValue()[ 1 ] );
+		}
+		out.writeLong( end );
+		out.writeInt( MAGIC );
+		out.flush();
+		channel.truncate( channel.position() );
+	}
+
+	/**
+	 * Append a tile.
+	 */
+	synchronized public void append( final String name, final byte[] bytes ) throws IOException
+	{
+		if ( !writable )
+			throw new IOException( file + " is open for reading only" );
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		long p = end;
+		while ( buffer.hasRemaining() )
+			p += channel.write( buffer, p );
+		final long[] location = new long[]{ end, bytes.length };
+		appended.put( name, location );
+		final long[] shadowed = index.put( name, location );
+		if ( shadowed != null )
+			live -= shadowed[ 1 ];
+		live += bytes.length;
+		end = p;
+		modified = true;
+	}
+
+	/**
+	 * @return the encoded bytes of a tile or null if the pack does not
+	 * 		contain it
+	 */
+	public byte[] read( final String name ) throws IOException
+	{
+		final long[] entry;
+		synchronized ( this )
+		{
+			entry = index.get( name );
+		}
+		if ( entry == null )
+			return null;
+		final ByteBuffer buffer = ByteBuffer.allocate( ( int )entry[ 1 ] );
+		readFully( buffer, entry[ 0 ] );
+		return buffer.array();
+	}
+
+	/**
+	 * Copy the encoded bytes of a tile to a stream.
+	 *
+	 * @return false if the pack does not contain the tile
+	 */
+	public boolean read( final String name, final OutputStream out ) throws IOException
+	{
+		final byte[] bytes = read( name );
+		if ( bytes == null )
+			return false;
+		out.write( bytes );
+		return true;
+	}
+
+	synchronized public boolean contains( final String name )
+	{
+		return index.containsKey( name );
+	}
+
+	/**
+	 * @return the names of all tiles in the order in which they were first
+	 * 		written
+	 */
+	synchronized public ArrayList< String > names()
+	{
+		return new ArrayList< String >( index.keySet() );
+	}
+
+	synchronized public int size()
+	{
+		return index.size();
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Copy the current version of all tiles into a new pack and replace this
+	 * pack with it.  Closes this pack.
+	 */
+	protected void compact() throws IOException
+	{
+		final File tmp = new File( file.getPath() + ".tmp" );
+		final RandomAccessFile tmpRaf = new RandomAccessFile( tmp, "rw" );
+		try
+		{
+			final FileChannel tmpChannel = tmpRaf.getChannel();
+			tmpChannel.truncate( 0 );
+			final LinkedHashMap< String, long[] > tmpIndex = new LinkedHashMap< String, long[] >();
+			long p = 0;
+			for ( final Map.Entry< String, long[] > entry : index.entrySet() )
+			{
+				final long[] location = entry.getValue();
+				for ( long n = 0; n < location[ 1 ]; )
+					n += channel.transferTo( location[ 0 ] + n, location[ 1 ] - n, tmpChannel.position( p + n ) );
+				tmpIndex.put( entry.getKey(), new long[]{ p, location[ 1 ] } );
+				p += location[ 1 ];
+			}
+			writeIndex( tmpChannel, tmpIndex, p, -1 );
+			tmpChannel.force( true );
+		}
+		finally
+		{
+			tmpRaf.close();
+			raf.close();
+		}
+		if ( !tmp.renameTo( file ) )
+			throw new IOException( "failed replacing " + file + " by " + tmp );
+	}
+
+	/**
+	 * Write the entries of the tiles appended since the index was last
+	 * written behind them.  The index is not forced to the device.  Tiles
+	 * appended later are written behind it.
+	 */
+	synchronized public void flush() throws IOException
+	{
+		if ( modified )
+		{
+			/* replace the last indices that are not larger than the new one */
+			int first = chain.size();
+			int size = appended.size();
+			while ( first > 0 && chain.get( first - 1 ).entries.size() <= size )
+				size += chain.get( --first ).entries.size();
+			final LinkedHashMap< String, long[] > entries = new LinkedHashMap< String, long[] >();
+			for ( final Link link : chain.subList( first, chain.size() ) )
+				entries.putAll( link.entries );
+			entries.putAll( appended );
+			chain.subList( first, chain.size() ).clear();
+
+			writeIndex( channel, entries, end, first == 0 ? -1 : chain.get( first - 1 ).footerEnd );
+			end = channel.position();
+			chain.add( new Link( end, entries ) );
+			appended.clear();
+			modified = false;
+			unforced = true;
+		}
+	}
+
+	/**
+	 * Write the index and close the pack without compacting it or forcing
+	 * it to the device, e.g. to reopen it later.
+	 *
+	 * @return true if the pack was changed by this instance and still has
+	 * 		to be forced to the device
+	 */
+	synchronized public boolean release() throws IOException
+	{
+		try
+		{
+			flush();
+			return unforced;
+		}
+		finally
+		{
+			modified = false;
+			unforced = false;
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write the index, compact the pack if necessary, and force it to the
+	 * device if it was changed by this instance.
+	 */
+	public void close() throws IOException
+	{
+		close( false );
+	}
+
+	/**
+	 * Write the index, compact the pack if necessary, and force it to the
+	 * device.
+	 *
+	 * @param force also if it was not changed by this instance, e.g. to
+	 * 		complete a pack that was only {@link #flush() flushed} earlier
+	 */
+	synchronized public void close( final boolean force ) throws IOException
+	{
+		try
+		{
+			if ( writable && ( force || modified || unforced ) )
+			{
+				if ( end - live > live )
+				{
+					compact();
+					return;
+				}
+				flush();
+				channel.force( true );
+			}
+		}
+		finally
+		{
+			modified = false;
+			unforced = false;
+			raf.close();
+		}
+	}
+}
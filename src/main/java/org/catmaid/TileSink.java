@@ -0,0 +1,44 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Storage for encoded export tiles that are addressed by their file path.
+ * Implementations must be thread-safe.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public interface TileSink
+{
+	/**
+	 * Store the encoded bytes of a tile, replacing an existing tile.
+	 */
+	public void write( final File file, final byte[] bytes ) throws IOException;
+
+	/**
+	 * @return the encoded bytes of a tile or null if it does not exist
+	 */
+	public byte[] read( final File file ) throws IOException;
+
+	/**
+	 * Make all written tiles durable and release resources.
+	 */
+	public void close() throws IOException;
+}
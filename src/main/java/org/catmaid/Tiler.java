@@ -18,6 +18,12 @@ package org.catmaid;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
@@ -41,6 +47,12 @@ public class Tiler
 //	final static protected Toolkit toolkit = Toolkit.getDefaultToolkit();
 	final protected RandomAccessibleInterval< ARGBType > source;
 	
+	/* receives all export tiles if not null */
+	protected N5Export volume = null;
+	
+	/* receives all export tiles instead of tile files if not null */
+	protected SectionStore sections = null;
+	
 	
 	public Tiler( final RandomAccessibleInterval< ARGBType > source )
 	{
@@ -48,6 +60,30 @@ public class Tiler
 	}
 	
 	
+	/**
+	 * Write all export tiles into an {@link N5Export} too, in the same pass.
+	 * 
+	 * @param volume null to export tiles only
+	 */
+	public void setVolume( final N5Export volume )
+	{
+		this.volume = volume;
+	}
+	
+	
+	/**
+	 * Write all export tiles into a {@link SectionStore} instead of tile
+	 * files.  The tiles of scale level 0 and the scale pyramid are then
+	 * generated from the sections by {@link ScaleCATMAID}.
+	 * 
+	 * @param sections null to export tile files
+	 */
+	public void setSections( final SectionStore sections )
+	{
+		this.sections = sections;
+	}
+	
+	
 	static public enum Orientation
 	{
 		XY, XZ, ZY
@@ -144,6 +180,446 @@ public class Tiler
 	}
 	
 	
+	/**
+	 * @return the source in export orientation
+	 */
+	protected RandomAccessibleInterval< ARGBType > orient( final Orientation orientation )
+	{
+		switch ( orientation )
+		{
+		case XZ:
+			return Views.permute( source, 1, 2 );
+		case ZY:
+			return Views.permute( source, 0, 2 );
+		default:
+			return source;
+		}
+	}
+	
+	
+	/**
+	 * @return sourceInterval in export orientation
+	 */
+	static protected Interval orient( final Interval sourceInterval, final Orientation orientation )
+	{
+		switch ( orientation )
+		{
+		case XZ:
+			return new FinalInterval(
+					new long[]{ sourceInterval.min( 0 ), sourceInterval.min( 2 ), sourceInterval.min( 1 ) },
+					new long[]{ sourceInterval.max( 0 ), sourceInterval.max( 2 ), sourceInterval.max( 1 ) } );
+		case ZY:
+			return new FinalInterval(
+					new long[]{ sourceInterval.min( 2 ), sourceInterval.min( 1 ), sourceInterval.min( 0 ) },
+					new long[]{ sourceInterval.max( 2 ), sourceInterval.max( 1 ), sourceInterval.max( 0 ) } );
+		default:
+			return sourceInterval;
+		}
+	}
+	
+	
+	/**
+	 * Export a single tile.  The buffers tilePixels, tile, and img can be
+	 * re-used for the next tile, tile and img must be backed by tilePixels
+	 * (see {@link Util#wrapRGB(int[], int, int)}).  If volume is not null, the
+	 * tile is added to it too.  If sections is not null, the tile is written
+	 * into its section instead of a tile file.
+	 */
+	static protected void exportTile(
+			final RandomAccessibleInterval< ARGBType > view,
+			final Interval viewInterval,
+			final Orientation orientation,
+			final int tileWidth,
+			final int tileHeight,
+			final long z,
+			final long r,
+			final long c,
+			final String exportPath,
+			final String tilePattern,
+			final String format,
+			final float quality,
+			final int type,
+			final int[] tilePixels,
+			final ArrayImg< ARGBType, IntArray > tile,
+			final BufferedImage img,
+			final N5Export volume,
+			final SectionStore sections ) throws IOException
+	{
+		final long[] min = new long[ 3 ];
+		final long[] size = new long[ 3 ];
+		size[ 2 ] = 1;
+		
+		min[ 2 ] = z + viewInterval.min( 2 );
+		min[ 1 ] = r * tileHeight + viewInterval.min( 1 );
+		final long max1 = Math.min( viewInterval.max( 1 ), min[ 1 ] + tileHeight - 1 );
+		size[ 1 ] = max1 - min[ 1 ] + 1;
+		min[ 0 ] = c * tileWidth + viewInterval.min( 0 );
+		final long max0 = Math.min( viewInterval.max( 0 ), min[ 0 ] + tileWidth - 1 );
+		size[ 0 ] = max0 - min[ 0 ] + 1;
+
+		final RandomAccessibleInterval< ARGBType > sourceTile = Views.hyperSlice( Views.offsetInterval( view, min, size ), 2, 0 );
+
+		copyTile( sourceTile, tile, orientation == Orientation.ZY, new ARGBType( 0 ) );
+		exportImage( img, z, r, c, exportPath, tilePattern, format, quality, type, volume, sections );
+//		writePngTile( img, sectionPath + "/" + r + "_" + c + "_0.png" );
+	}
+	
+	
+	/**
+	 * Write an export tile from the RGB image img.  If volume is not null,
+	 * the tile is added to it too.  If sections is not null, the tile is
+	 * written into its section instead of a tile file.
+	 */
+	static protected void exportImage(
+			final BufferedImage img,
+			final long z,
+			final long r,
+			final long c,
+			final String exportPath,
+			final String tilePattern,
+			final String format,
+			final float quality,
+			final int type,
+			final N5Export volume,
+			final SectionStore sections ) throws IOException
+	{
+		/* RGB tiles are written as they are, gray tiles are converted into
+		 * a pooled image by Java2D whose native loop is faster than doing it
+		 * here */
+		final BufferedImage imgCopy = type == BufferedImage.TYPE_INT_RGB ? img : Util.draw( img, type );
+		
+		final String tilePath =
+				new StringBuffer( exportPath ).
+				append( "/" ).
+				append( tileName( tilePattern, 0, z, r, c ) ).
+				append( "." ).
+				append( format ).
+				toString();
+		
+		try
+		{
+			if ( volume != null )
+				volume.write( z, r, c, imgCopy );
+			if ( sections != null )
+				sections.write( z, r, c, imgCopy );
+			else
+				Util.writeTile( imgCopy, tilePath, format, quality );
+		}
+		finally
+		{
+			if ( imgCopy != img )
+				BufferPool.releaseImage( imgCopy );
+		}
+	}
+	
+	
+	/**
+	 * Greatest common divisor.
+	 */
+	static protected long gcd( final long a, final long b )
+	{
+		return b == 0 ? a : gcd( b, a % b );
+	}
+	
+	
+	/**
+	 * Read one block of the source and export all tiles of all orientations
+	 * that it contains.  The block covers tile column bx and tile row by in
+	 * <em>x,y</em> and sections [bz &times; blockDepth, (bz + 1) &times;
+	 * blockDepth) of sourceInterval, clipped to sourceInterval.  blockDepth
+	 * must be a multiple of tileHeight for {@link Orientation#XZ} and of
+	 * tileWidth for {@link Orientation#ZY}.
+	 * 
+	 * @param block buffer of at least tileWidth &times; tileHeight &times;
+	 * 		blockDepth pixels
+	 */
+	protected void exportBlock(
+			final Interval sourceInterval,
+			final Orientation[] orientations,
+			final String[] exportPaths,
+			final int tileWidth,
+			final int tileHeight,
+			final int blockDepth,
+			final int[] block,
+			final long bx,
+			final long by,
+			final long bz,
+			final String tilePattern,
+			final String format,
+			final float quality,
+			final int type ) throws IOException
+	{
+		final long x0 = bx * tileWidth;
+		final long y0 = by * tileHeight;
+		final long z0 = bz * blockDepth;
+		final int bw = ( int )Math.min( tileWidth, sourceInterval.dimension( 0 ) - x0 );
+		final int bh = ( int )Math.min( tileHeight, sourceInterval.dimension( 1 ) - y0 );
+		final int bd = ( int )Math.min( blockDepth, sourceInterval.dimension( 2 ) - z0 );
+		
+		final int[] tilePixels = BufferPool.takeInts( tileWidth * tileHeight );
+		try
+		{
+			final long[] min = new long[]{
+					sourceInterval.min( 0 ) + x0,
+					sourceInterval.min( 1 ) + y0,
+					sourceInterval.min( 2 ) + z0 };
+			final long[] max = new long[]{ min[ 0 ] + bw - 1, min[ 1 ] + bh - 1, min[ 2 ] + bd - 1 };
+			final Cursor< ARGBType > cursor = Views.flatIterable( Views.interval( source, min, max ) ).cursor();
+			for ( int i = 0; cursor.hasNext(); ++i )
+				block[ i ] = cursor.next().get();
+			
+			final BufferedImage img = Util.wrapRGB( tilePixels, tileWidth, tileHeight );
+			for ( int o = 0; o < orientations.length; ++o )
+			{
+				switch ( orientations[ o ] )
+				{
+				case XZ:
+					/* sections are y, rows are z */
+					for ( int y = 0; y < bh; ++y )
+					{
+						for ( int k0 = 0; k0 < bd; k0 += tileHeight )
+						{
+							Arrays.fill( tilePixels, 0 );
+							for ( int v = 0; v < tileHeight && k0 + v < bd; ++v )
+								System.arraycopy( block, ( ( k0 + v ) * bh + y ) * bw, tilePixels, v * tileWidth, bw );
+							exportImage( img, y0 + y, ( z0 + k0 ) / tileHeight, bx, exportPaths[ o ], tilePattern, format, quality, type, null, null );
+						}
+					}
+					break;
+				case ZY:
+					/* sections are x, columns are z */
+					for ( int x = 0; x < bw; ++x )
+					{
+						for ( int k0 = 0; k0 < bd; k0 += tileWidth )
+						{
+							Arrays.fill( tilePixels, 0 );
+							for ( int v = 0; v < bh; ++v )
+								for ( int u = 0; u < tileWidth && k0 + u < bd; ++u )
+									tilePixels[ v * tileWidth + u ] = block[ ( ( k0 + u ) * bh + v ) * bw + x ];
+							exportImage( img, x0 + x, by, ( z0 + k0 ) / tileWidth, exportPaths[ o ], tilePattern, format, quality, type, null, null );
+						}
+					}
+					break;
+				default:
+					for ( int z = 0; z < bd; ++z )
+					{
+						Arrays.fill( tilePixels, 0 );
+						for ( int v = 0; v < bh; ++v )
+							System.arraycopy( block, ( z * bh + v ) * bw, tilePixels, v * tileWidth, bw );
+						exportImage( img, z0 + z, by, bx, exportPaths[ o ], tilePattern, format, quality, type, null, null );
+					}
+				}
+			}
+		}
+		finally
+		{
+			BufferPool.releaseInts( tilePixels );
+		}
+	}
+	
+	
+	/**
+	 * @return the number of sections per block that completes the tiles of
+	 * 		all orientations, i.e. the least common multiple of tileHeight
+	 * 		for {@link Orientation#XZ} and tileWidth for
+	 * 		{@link Orientation#ZY}
+	 */
+	static protected long blockDepth(
+			final Orientation[] orientations,
+			final int tileWidth,
+			final int tileHeight )
+	{
+		long depth = 1;
+		for ( final Orientation orientation : orientations )
+		{
+			final long d = orientation == Orientation.XZ ? tileHeight : orientation == Orientation.ZY ? tileWidth : 1;
+			depth = depth / gcd( depth, d ) * d;
+		}
+		return depth;
+	}
+	
+	
+	/**
+	 * Generate the CATMAID tile stacks of several orientations of an
+	 * {@link Interval} of the source in a single sweep.  The source is read
+	 * once, in blocks of one tile in <em>x,y</em> and as many sections in
+	 * <em>z</em> as complete the tiles of all orientations, see
+	 * {@link #blockDepth(Orientation[], int, int)}, and every block exports
+	 * all tiles of all orientations that it contains.  Compared to one
+	 * export per orientation, each source tile is loaded once instead of
+	 * once per orientation, as long as the sections of a block fit into the
+	 * source cache.
+	 * 
+	 * <p>Each task keeps one block in memory, blocks are re-used.  If a
+	 * block of all orientations would be larger than maxBlockSize, which
+	 * happens for tiles of different width and height, {@link Orientation#XZ}
+	 * and {@link Orientation#ZY} are exported in two sweeps.</p>
+	 * 
+	 * @param sourceInterval the interval of the source to be exported, in
+	 * 		<em>x,y,z</em>
+	 * @param orientations the export orientations
+	 * @param exportPaths base path for export, one per orientation
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param maxBlockSize maximum size of a block in bytes
+	 * @param tilePattern the file name convention for tile coordinates without
+	 * 		extension and base path, must contain "&lt;s&gt;","&lt;z&gt;",
+	 * 		"&lt;r&gt;", "&lt;c&gt;".
+	 * @param format
+	 * @param quality
+	 * @param type
+	 * @param service exports blocks in parallel, null to export them
+	 * 		serially.  This requires a source that can be accessed
+	 * 		concurrently.
+	 * @throws IOException
+	 * @throws IllegalArgumentException if a block of a single orientation
+	 * 		is larger than maxBlockSize
+	 */
+	public void tile(
+			final Interval sourceInterval,
+			final Orientation[] orientations,
+			final String[] exportPaths,
+			final int tileWidth,
+			final int tileHeight,
+			final long maxBlockSize,
+			final String tilePattern,
+			final String format,
+			final float quality,
+			final int type,
+			final ExecutorService service ) throws IOException
+	{
+		final long tileSize = 4L * tileWidth * tileHeight;
+		if ( blockDepth( orientations, tileWidth, tileHeight ) * tileSize <= maxBlockSize )
+		{
+			sweep( sourceInterval, orientations, exportPaths, tileWidth, tileHeight, tilePattern, format, quality, type, service );
+			return;
+		}
+		
+		/* XZ with XY, and ZY */
+		final ArrayList< Orientation > orientations1 = new ArrayList< Orientation >();
+		final ArrayList< Orientation > orientations2 = new ArrayList< Orientation >();
+		final ArrayList< String > exportPaths1 = new ArrayList< String >();
+		final ArrayList< String > exportPaths2 = new ArrayList< String >();
+		for ( int i = 0; i < orientations.length; ++i )
+		{
+			if ( orientations[ i ] == Orientation.ZY )
+			{
+				orientations2.add( orientations[ i ] );
+				exportPaths2.add( exportPaths[ i ] );
+			}
+			else
+			{
+				orientations1.add( orientations[ i ] );
+				exportPaths1.add( exportPaths[ i ] );
+			}
+		}
+		final Orientation[][] sweeps = new Orientation[][]{
+				orientations1.toArray( new Orientation[ 0 ] ),
+				orientations2.toArray( new Orientation[ 0 ] ) };
+		for ( final Orientation[] sweep : sweeps )
+		{
+			final long blockSize = blockDepth( sweep, tileWidth, tileHeight ) * tileSize;
+			if ( blockSize > maxBlockSize )
+				throw new IllegalArgumentException(
+						"Blocks of " + ( blockSize >> 20 ) + "MB for " + tileWidth + "x" + tileHeight + " tiles exceed the maximum block size of " + ( maxBlockSize >> 20 ) + "MB" );
+		}
+		System.out.println( "exporting XZ and ZY in two sweeps to keep blocks smaller than " + ( maxBlockSize >> 20 ) + "MB" );
+		sweep( sourceInterval, sweeps[ 0 ], exportPaths1.toArray( new String[ 0 ] ), tileWidth, tileHeight, tilePattern, format, quality, type, service );
+		sweep( sourceInterval, sweeps[ 1 ], exportPaths2.toArray( new String[ 0 ] ), tileWidth, tileHeight, tilePattern, format, quality, type, service );
+	}
+	
+	
+	/**
+	 * Export all blocks of one sweep, see
+	 * {@link #tile(Interval, Orientation[], String[], int, int, long, String, String, float, int, ExecutorService)}.
+	 */
+	protected void sweep(
+			final Interval sourceInterval,
+			final Orientation[] orientations,
+			final String[] exportPaths,
+			final int tileWidth,
+			final int tileHeight,
+			final String tilePattern,
+			final String format,
+			final float quality,
+			final int type,
+			final ExecutorService service ) throws IOException
+	{
+		if ( orientations.length == 0 )
+			return;
+		final int blockDepth = ( int )blockDepth( orientations, tileWidth, tileHeight );
+		if ( ( long )tileWidth * tileHeight * blockDepth > Integer.MAX_VALUE - 8 )
+			throw new IllegalArgumentException( "Blocks of " + tileWidth + "x" + tileHeight + "x" + blockDepth + " pixels are too large" );
+		final int blockLength = tileWidth * tileHeight * blockDepth;
+		final long cols = ( sourceInterval.dimension( 0 ) + tileWidth - 1 ) / tileWidth;
+		final long rows = ( sourceInterval.dimension( 1 ) + tileHeight - 1 ) / tileHeight;
+		final long depth = ( sourceInterval.dimension( 2 ) + blockDepth - 1 ) / blockDepth;
+		
+		final ArrayList< long[] > blocks = new ArrayList< long[] >();
+		for ( long bz = 0; bz < depth; ++bz )
+			for ( long by = 0; by < rows; ++by )
+				for ( long bx = 0; bx < cols; ++bx )
+					blocks.add( new long[]{ bx, by, bz } );
+		
+		if ( service == null )
+		{
+			final int[] block = new int[ blockLength ];
+			for ( final long[] b : blocks )
+				exportBlock( sourceInterval, orientations, exportPaths, tileWidth, tileHeight, blockDepth, block, b[ 0 ], b[ 1 ], b[ 2 ], tilePattern, format, quality, type );
+			return;
+		}
+		
+		/* one block per running task, guarded by itself */
+		final ArrayList< int[] > freeBlocks = new ArrayList< int[] >();
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for ( final long[] b : blocks )
+			tasks.add(
+					new Callable< Void >()
+					{
+						@Override
+						public Void call() throws IOException
+						{
+							int[] block = null;
+							synchronized ( freeBlocks )
+							{
+								if ( !freeBlocks.isEmpty() )
+									block = freeBlocks.remove( freeBlocks.size() - 1 );
+							}
+							if ( block == null )
+								block = new int[ blockLength ];
+							try
+							{
+								exportBlock( sourceInterval, orientations, exportPaths, tileWidth, tileHeight, blockDepth, block, b[ 0 ], b[ 1 ], b[ 2 ], tilePattern, format, quality, type );
+							}
+							finally
+							{
+								synchronized ( freeBlocks )
+								{
+									freeBlocks.add( block );
+								}
+							}
+							return null;
+						}
+					} );
+		try
+		{
+			for ( final Future< Void > future : service.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "interrupted exporting blocks" );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException )e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+	
+	
 	/**
 	 * Generate a subset of a CATMAID tile stack of an {@link Interval} of the
 	 * source {@link RandomAccessibleInterval}.  That is you can choose the
@@ -186,71 +662,151 @@ public class Tiler
 			final int type ) throws IOException
 	{
 		/* orientation */
-		final RandomAccessibleInterval< ARGBType > view;
-		final Interval viewInterval;
-		switch ( orientation )
-		{
-		case XZ:
-			view = Views.permute( source, 1, 2 );
-			viewInterval = new FinalInterval(
-					new long[]{ sourceInterval.min( 0 ), sourceInterval.min( 2 ), sourceInterval.min( 1 ) },
-					new long[]{ sourceInterval.max( 0 ), sourceInterval.max( 2 ), sourceInterval.max( 1 ) } );
-			break;
-		case ZY:
-			view = Views.permute( source, 0, 2 );
-			viewInterval = new FinalInterval(
-					new long[]{ sourceInterval.min( 2 ), sourceInterval.min( 1 ), sourceInterval.min( 0 ) },
-					new long[]{ sourceInterval.max( 2 ), sourceInterval.max( 1 ), sourceInterval.max( 0 ) } );
-			break;
-		default:
-			view = source;
-			viewInterval = sourceInterval;
-		}
-		
-//		final long maxC = 
-//		final long maxR = ( long ) Math.ceil( ( double ) viewInterval.dimension( 1 ) / ( double ) tileHeight ) - 1;
-//		final long maxZ = viewInterval.dimension( 2 ) - 1;
-//		
-		final long[] min = new long[ 3 ];
-		final long[] size = new long[ 3 ];
-		size[ 2 ] = 1;
+		final RandomAccessibleInterval< ARGBType > view = orient( orientation );
+		final Interval viewInterval = orient( sourceInterval, orientation );
 		
 		final int[] tilePixels = new int[ tileWidth * tileHeight ];
 		final ArrayImg< ARGBType, IntArray > tile = ArrayImgs.argbs( tilePixels, tileWidth, tileHeight );
-		final BufferedImage img = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
+		final BufferedImage img = Util.wrapRGB( tilePixels, tileWidth, tileHeight );
+		
+		for ( long z = minZ; z <= maxZ; ++z )
+			for ( long r = minR; r <= maxR; ++r )
+				for ( long c = minC; c <= maxC; ++c )
+					exportTile(
+							view,
+							viewInterval,
+							orientation,
+							tileWidth,
+							tileHeight,
+							z,
+							r,
+							c,
+							exportPath,
+							tilePattern,
+							format,
+							quality,
+							type,
+							tilePixels,
+							tile,
+							img,
+							volume,
+							sections );
+	}
+	
+	
+	/**
+	 * Generate a subset of a CATMAID tile stack of an {@link Interval} of the
+	 * source {@link RandomAccessibleInterval} like
+	 * {@link #tile(Interval, Orientation, int, int, long, long, long, long, long, long, String, String, String, float, int)}
+	 * but export the tiles of each section in parallel on
+	 * <code>service</code>.  This requires a source that can be accessed
+	 * concurrently.
+	 * 
+	 * @param sourceInterval the interval of the source to be exported 
+	 * @param orientation the export orientation
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param minZ the first z-index to be exported
+	 * @param maxZ the last z-index to be exported
+	 * @param minR the first tile-row at scale-level 0 to be exported
+	 * @param maxR the last tile-row at scale-level 0 to be exported
+	 * @param minC the first tile-column at scale-level 0 to be exported
+	 * @param maxC the last tile-column at scale-level 0 to be exported
+	 * @param exportPath base path for export
+	 * @param tilePattern the file name convention for tile coordinates without
+	 * 		extension and base path, must contain "&lt;s&gt;","&lt;z&gt;",
+	 * 		"&lt;r&gt;", "&lt;c&gt;".
+	 * @param format
+	 * @param quality
+	 * @param type
+	 * @param service
+	 * @throws IOException
+	 */
+	public void tile(
+			final Interval sourceInterval,
+			final Orientation orientation,
+			final int tileWidth,
+			final int tileHeight,
+			final long minZ,
+			final long maxZ,
+			final long minR,
+			final long maxR,
+			final long minC,
+			final long maxC,
+			final String exportPath,
+			final String tilePattern,
+			final String format,
+			final float quality,
+			final int type,
+			final ExecutorService service ) throws IOException
+	{
+		/* orientation */
+		final RandomAccessibleInterval< ARGBType > view = orient( orientation );
+		final Interval viewInterval = orient( sourceInterval, orientation );
 		
 		for ( long z = minZ; z <= maxZ; ++z )
 		{
-			min[ 2 ] = z + viewInterval.min( 2 );
+			final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 			for ( long r = minR; r <= maxR; ++r )
 			{
-				min[ 1 ] = r * tileHeight + viewInterval.min( 1 );
-				final long max1 = Math.min( viewInterval.max( 1 ), min[ 1 ] + tileHeight - 1 );
-				size[ 1 ] = max1 - min[ 1 ] + 1;
 				for ( long c = minC; c <= maxC; ++c )
 				{
-					min[ 0 ] = c * tileWidth + viewInterval.min( 0 );
-					final long max0 = Math.min( viewInterval.max( 0 ), min[ 0 ] + tileWidth - 1 );
-					size[ 0 ] = max0 - min[ 0 ] + 1;
-
-					final RandomAccessibleInterval< ARGBType > sourceTile = Views.hyperSlice( Views.offsetInterval( view, min, size ), 2, 0 );
-
-					copyTile( sourceTile, tile, orientation == Orientation.ZY, new ARGBType( 0 ) );
-					img.getRaster().setDataElements( 0, 0, tileWidth, tileHeight, tilePixels );
-					final BufferedImage imgCopy = Util.draw( img, type );
-					
-					final String tilePath =
-							new StringBuffer( exportPath ).
-							append( "/" ).
-							append( tileName( tilePattern, 0, z, r, c ) ).
-							append( "." ).
-							append( format ).
-							toString();
-					
-					Util.writeTile( imgCopy, tilePath, format, quality );
-//					writePngTile( img, sectionPath + "/" + r + "_" + c + "_0.png" );
+					final long fz = z, fr = r, fc = c;
+					tasks.add(
+							new Callable< Void >()
+							{
+								@Override
+								public Void call() throws IOException
+								{
+									final int[] tilePixels = BufferPool.takeInts( tileWidth * tileHeight );
+									try
+									{
+										exportTile(
+												view,
+												viewInterval,
+												orientation,
+												tileWidth,
+												tileHeight,
+												fz,
+												fr,
+												fc,
+												exportPath,
+												tilePattern,
+												format,
+												quality,
+												type,
+												tilePixels,
+												ArrayImgs.argbs( tilePixels, tileWidth, tileHeight ),
+												Util.wrapRGB( tilePixels, tileWidth, tileHeight ),
+												volume,
+												sections );
+									}
+									finally
+									{
+										BufferPool.releaseInts( tilePixels );
+									}
+									return null;
+								}
+							} );
 				}
 			}
+			
+			try
+			{
+				for ( final Future< Void > future : service.invokeAll( tasks ) )
+					future.get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException( "interrupted exporting section " + z );
+			}
+			catch ( final ExecutionException e )
+			{
+				if ( e.getCause() instanceof IOException )
+					throw ( IOException )e.getCause();
+				throw new RuntimeException( e.getCause() );
+			}
 		}
 	}
 	
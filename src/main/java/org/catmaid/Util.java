@@ -16,16 +16,39 @@
  */
 package org.catmaid;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 /**
  * 
@@ -34,6 +57,42 @@ import javax.imageio.stream.FileImageOutputStream;
  */
 public class Util
 {
+	/* ImageWriters are expensive to look up and create, and not thread-safe,
+	 * so every thread keeps one per format, and one ImageWriteParam per
+	 * format and quality */
+	final static protected ThreadLocal< HashMap< String, ImageWriter > > writers =
+			new ThreadLocal< HashMap< String, ImageWriter > >()
+			{
+				@Override
+				protected HashMap< String, ImageWriter > initialValue()
+				{
+					return new HashMap< String, ImageWriter >();
+				}
+			};
+	final static protected ThreadLocal< HashMap< String, ImageWriteParam > > writeParams =
+			new ThreadLocal< HashMap< String, ImageWriteParam > >()
+			{
+				@Override
+				protected HashMap< String, ImageWriteParam > initialValue()
+				{
+					return new HashMap< String, ImageWriteParam >();
+				}
+			};
+	
+	final static protected Set< String > createdDirectories =
+			Collections.newSetFromMap( new ConcurrentHashMap< String, Boolean >() );
+	
+	/**
+	 * Size of the header of raw tiles: width, height, and bytes per pixel
+	 * as big-endian ints.
+	 */
+	final static public int RAW_HEADER_SIZE = 12;
+	
+	static protected volatile WriteBehind writeBehind = null;
+	
+	/* null to write every tile directly to its file */
+	static protected volatile TileSink tileSink = null;
+	
 	final static public String tilePath(
 			final String tileFormat,
 			final int scaleLevel,
@@ -49,36 +108,430 @@ public class Util
 		return String.format( tileFormat, scaleLevel, scale, x, y, z, tileWidth, tileHeight, row, column );
 	}
 	
+	/**
+	 * Create a {@link BufferedImage#TYPE_INT_RGB} image backed by an
+	 * existing pixel array, i.e. without copying the pixels.  Changes of the
+	 * array are visible in the image.
+	 * 
+	 * @param pixels RGB pixels, the alpha byte is ignored
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	final static public BufferedImage wrapRGB(
+			final int[] pixels,
+			final int width,
+			final int height )
+	{
+		final int[] masks = new int[]{ 0xff0000, 0xff00, 0xff };
+		return new BufferedImage(
+				new DirectColorModel( 24, masks[ 0 ], masks[ 1 ], masks[ 2 ] ),
+				Raster.createPackedRaster( new DataBufferInt( pixels, width * height ), width, height, width, masks, null ),
+				false,
+				null );
+	}
+	
+	/**
+	 * Draw an image into a {@link BufferedImage} of the given size and type
+	 * from the {@link BufferPool}.  Pixels not covered by img are black.
+	 * 
+	 * @param img
+	 * @param width
+	 * @param height
+	 * @param type
+	 * @return the drawn image, can be released to the {@link BufferPool}
+	 * 		when not needed anymore
+	 */
 	final static public BufferedImage draw(
 			final Image img,
+			final int width,
+			final int height,
 			final int type )
 	{
-		final BufferedImage imgCopy = new BufferedImage( img.getWidth( null ), img.getHeight( null ), type );
-		imgCopy.createGraphics().drawImage( img, 0, 0, null );
+		final BufferedImage imgCopy = BufferPool.takeImage( width, height, type );
+		final Graphics2D g = imgCopy.createGraphics();
+		/* the pooled image has undefined contents, clear what img may not
+		 * paint over */
+		if ( !( img instanceof BufferedImage ) ||
+				( ( BufferedImage )img ).getColorModel().hasAlpha() ||
+				img.getWidth( null ) < width ||
+				img.getHeight( null ) < height )
+		{
+			g.setColor( Color.BLACK );
+			g.fillRect( 0, 0, width, height );
+		}
+		if ( img != null )
+			g.drawImage( img, 0, 0, null );
+		g.dispose();
 		return imgCopy;
 	}
 	
+	/**
+	 * Draw an image into a {@link BufferedImage} of the same size and the
+	 * given type from the {@link BufferPool}.
+	 * 
+	 * @param img
+	 * @param type
+	 * @return the drawn image, can be released to the {@link BufferPool}
+	 * 		when not needed anymore
+	 */
+	final static public BufferedImage draw(
+			final Image img,
+			final int type )
+	{
+		return draw( img, img.getWidth( null ), img.getHeight( null ), type );
+	}
+	
+	/**
+	 * Read an image like {@link ImageIO#read(Object)} but decode it into a
+	 * {@link BufferedImage} from the {@link BufferPool} if the reader's
+	 * default image type is a standard type.
+	 * 
+	 * @param input a {@link File} or {@link java.io.InputStream}
+	 * @return the image, can be released to the {@link BufferPool} when not
+	 * 		needed anymore, or null if no reader can decode input
+	 * @throws IOException
+	 */
+	final static public BufferedImage read( final Object input ) throws IOException
+	{
+		final ImageInputStream stream = ImageIO.createImageInputStream( input );
+		if ( stream == null )
+			throw new IOException( "Can't create an ImageInputStream for " + input );
+		try
+		{
+			final Iterator< ImageReader > readers = ImageIO.getImageReaders( stream );
+			if ( !readers.hasNext() )
+				return null;
+			final ImageReader reader = readers.next();
+			try
+			{
+				reader.setInput( stream, true, true );
+				final ImageReadParam param = reader.getDefaultReadParam();
+				final Iterator< ImageTypeSpecifier > imageTypes = reader.getImageTypes( 0 );
+				if ( imageTypes.hasNext() )
+				{
+					final int type = imageTypes.next().getBufferedImageType();
+					if ( type != BufferedImage.TYPE_CUSTOM )
+						param.setDestination( BufferPool.takeImage( reader.getWidth( 0 ), reader.getHeight( 0 ), type ) );
+				}
+				return reader.read( 0, param );
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Create a directory and its parents unless this has been done before.
+	 */
+	final static public void mkdirs( final File directory )
+	{
+		final String path = directory.getPath();
+		if ( !createdDirectories.contains( path ) )
+		{
+			directory.mkdirs();
+			createdDirectories.add( path );
+		}
+	}
+	
+	/**
+	 * Queue tiles written by {@link #writeTile(BufferedImage, String, String, float)}
+	 * for asynchronous writing after encoding them.
+	 * 
+	 * @param capacity maximum number of encoded tiles waiting to be written,
+	 * 		0 to write synchronously
+	 */
+	synchronized static public void setWriteBehind( final int capacity ) throws IOException
+	{
+		if ( writeBehind != null )
+			writeBehind.close();
+		writeBehind = capacity > 0 ? new WriteBehind( capacity, tileSink == null ? new FileTileSink() : tileSink ) : null;
+	}
+	
+	/**
+	 * Store tiles written by {@link #writeTile(BufferedImage, String, String, float)}
+	 * and read by {@link #readTile(String)} in a {@link TileSink} instead
+	 * of one file per tile.  The previous sink is closed.
+	 * 
+	 * @param sink null to write one file per tile
+	 */
+	synchronized static public void setTileSink( final TileSink sink ) throws IOException
+	{
+		close();
+		tileSink = sink;
+		if ( writeBehind != null )
+		{
+			final int capacity = writeBehind.getCapacity();
+			writeBehind.close();
+			writeBehind = new WriteBehind( capacity, sink == null ? new FileTileSink() : sink );
+		}
+	}
+	
+	/**
+	 * Wait until all tiles queued for asynchronous writing are written.
+	 * 
+	 * @throws IOException if writing any of them failed
+	 */
+	synchronized static public void flush() throws IOException
+	{
+		if ( writeBehind != null )
+			writeBehind.flush();
+	}
+	
+	/**
+	 * {@link #flush() Flush} and close the {@link TileSink}, i.e. make all
+	 * written tiles durable.  The sink remains usable.
+	 * 
+	 * @throws IOException if writing any of the tiles failed
+	 */
+	synchronized static public void close() throws IOException
+	{
+		flush();
+		if ( tileSink != null )
+			tileSink.close();
+	}
+	
+	/**
+	 * Read a tile written by {@link #writeTile(BufferedImage, String, String, float)}
+	 * from the {@link TileSink} or file system.  Tiles queued for
+	 * asynchronous writing have to be {@link #flush() flushed} first.
+	 * 
+	 * @return the image, can be released to the {@link BufferPool} when not
+	 * 		needed anymore, or null if the tile does not exist
+	 * @throws IOException
+	 */
+	final static public BufferedImage readTile( final String path ) throws IOException
+	{
+		final File file = new File( path );
+		final TileSink sink = tileSink;
+		if ( sink == null )
+		{
+			if ( !file.exists() )
+				return null;
+			else if ( isRaw( path ) )
+				return readRaw( map( file ) );
+			else
+				return read( file );
+		}
+		final byte[] bytes = sink.read( file );
+		if ( bytes == null )
+			return null;
+		else if ( isRaw( path ) )
+			return readRaw( ByteBuffer.wrap( bytes ) );
+		else
+			return read( new ByteArrayInputStream( bytes ) );
+	}
+	
+	/**
+	 * @return true if path addresses a tile in the raw format, i.e. ends
+	 * 		with ".raw"
+	 */
+	final static public boolean isRaw( final String path )
+	{
+		return path.toLowerCase().endsWith( ".raw" );
+	}
+	
+	/**
+	 * Map a file read-only.  The mapping remains valid after the channel is
+	 * closed.
+	 */
+	final static public MappedByteBuffer map( final File file ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Read a tile in the raw format, a {@link #RAW_HEADER_SIZE} byte header
+	 * followed by the pixels, one byte per pixel for gray and one int
+	 * (ARGB) per pixel for RGB tiles.
+	 * 
+	 * @param buffer whose remaining bytes are the tile, its position is
+	 * 		not changed
+	 * @return the image, {@link BufferedImage#TYPE_BYTE_GRAY} or
+	 * 		{@link BufferedImage#TYPE_INT_RGB}, can be released to the
+	 * 		{@link BufferPool} when not needed anymore
+	 * @throws IOException if the buffer is not a raw tile
+	 */
+	final static public BufferedImage readRaw( final ByteBuffer buffer ) throws IOException
+	{
+		final ByteBuffer raw = buffer.duplicate();
+		if ( raw.remaining() < RAW_HEADER_SIZE )
+			throw new IOException( "Not a raw tile" );
+		final int width = raw.getInt();
+		final int height = raw.getInt();
+		final int bytesPerPixel = raw.getInt();
+		if ( ( bytesPerPixel != 1 && bytesPerPixel != 4 ) || raw.remaining() < ( long )width * height * bytesPerPixel )
+			throw new IOException( "Not a raw tile" );
+		if ( bytesPerPixel == 1 )
+		{
+			final BufferedImage img = BufferPool.takeImage( width, height, BufferedImage.TYPE_BYTE_GRAY );
+			raw.get( ( ( DataBufferByte )img.getRaster().getDataBuffer() ).getData(), 0, width * height );
+			return img;
+		}
+		else
+		{
+			final BufferedImage img = BufferPool.takeImage( width, height, BufferedImage.TYPE_INT_RGB );
+			raw.asIntBuffer().get( ( ( DataBufferInt )img.getRaster().getDataBuffer() ).getData(), 0, width * height );
+			return img;
+		}
+	}
+	
+	/**
+	 * Write a tile in the raw format, see {@link #readRaw(ByteBuffer)}.
+	 * {@link BufferedImage#TYPE_BYTE_GRAY} images are written as gray, all
+	 * other images as RGB.
+	 */
+	final static protected void writeRaw(
+			final BufferedImage img,
+			final ImageOutputStream output ) throws IOException
+	{
+		final int width = img.getWidth();
+		final int height = img.getHeight();
+		output.writeInt( width );
+		output.writeInt( height );
+		if ( img.getType() == BufferedImage.TYPE_BYTE_GRAY )
+		{
+			output.writeInt( 1 );
+			output.write( ( ( DataBufferByte )img.getRaster().getDataBuffer() ).getData(), 0, width * height );
+		}
+		else
+		{
+			output.writeInt( 4 );
+			final int[] row = BufferPool.takeInts( width );
+			try
+			{
+				final int[] pixels = img.getType() == BufferedImage.TYPE_INT_RGB ?
+						( ( DataBufferInt )img.getRaster().getDataBuffer() ).getData() :
+						null;
+				for ( int y = 0; y < height; ++y )
+				{
+					if ( pixels == null )
+						img.getRGB( 0, y, width, 1, row, 0, width );
+					else
+						System.arraycopy( pixels, y * width, row, 0, width );
+					for ( int x = 0; x < width; ++x )
+						row[ x ] |= 0xff000000;
+					output.writeInts( row, 0, width );
+				}
+			}
+			finally
+			{
+				BufferPool.releaseInts( row );
+			}
+		}
+	}
+	
+	final static protected ImageWriter writer( final String format )
+	{
+		final HashMap< String, ImageWriter > threadWriters = writers.get();
+		ImageWriter writer = threadWriters.get( format );
+		if ( writer == null )
+		{
+			writer = ImageIO.getImageWritersByFormatName( format ).next();
+			threadWriters.put( format, writer );
+		}
+		return writer;
+	}
+	
+	final static protected ImageWriteParam writeParam(
+			final ImageWriter writer,
+			final String format,
+			final float quality )
+	{
+		final String key = format + "@" + quality;
+		final HashMap< String, ImageWriteParam > threadParams = writeParams.get();
+		ImageWriteParam param = threadParams.get( key );
+		if ( param == null )
+		{
+			param = writer.getDefaultWriteParam();
+			param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+			param.setCompressionQuality( quality );
+			threadParams.put( key, param );
+		}
+		return param;
+	}
+	
+	final static protected void writeTile(
+			final BufferedImage img,
+			final ImageOutputStream output,
+			final String format,
+			final float quality ) throws IOException
+	{
+		if ( format.equalsIgnoreCase( "raw" ) )
+		{
+			writeRaw( img, output );
+			return;
+		}
+		final ImageWriter writer = writer( format );
+		try
+		{
+			writer.setOutput( output );
+			if ( format.equalsIgnoreCase( "jpg" ) )
+				writer.write( null, new IIOImage( img.getRaster(), null, null ), writeParam( writer, format, quality ) );
+			else
+				writer.write( img );
+			writer.setOutput( null );
+		}
+		catch ( final IOException e )
+		{
+			/* do not re-use a writer in an undefined state */
+			writers.get().remove( format );
+			writer.dispose();
+			throw e;
+		}
+	}
+	
 	final static public void writeTile(
 			final BufferedImage img,
 			final String path,
 			final String format,
 			final float quality ) throws IOException
 	{
-		new File( path ).getParentFile().mkdirs();
-		final ImageWriter writer = ImageIO.getImageWritersByFormatName( format ).next();
-		final FileImageOutputStream output = new FileImageOutputStream( new File( path ) );
-		writer.setOutput( output );
-		if ( format.equalsIgnoreCase( "jpg" ) )
+		final File file = new File( path );
+		final WriteBehind queue = writeBehind;
+		final TileSink sink = tileSink;
+		if ( queue == null && sink == null )
 		{
-			final ImageWriteParam param = writer.getDefaultWriteParam();
-			param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
-			param.setCompressionQuality( quality );
-			writer.write( null, new IIOImage( img.getRaster(), null, null ), param );
+			mkdirs( file.getParentFile() );
+			/* FileImageOutputStream does not truncate existing tiles */
+			final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+			try
+			{
+				raf.setLength( 0 );
+				final FileImageOutputStream output = new FileImageOutputStream( raf );
+				writeTile( img, output, format, quality );
+				output.flush();
+			}
+			finally
+			{
+				raf.close();
+			}
 		}
 		else
-			writer.write( img );
-		
-		writer.dispose();
-		output.close();
+		{
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream( bytes );
+			writeTile( img, output, format, quality );
+			output.close();
+			if ( queue == null )
+				sink.write( file, bytes.toByteArray() );
+			else
+				queue.submit( file, bytes.toByteArray() );
+		}
 	}
 }
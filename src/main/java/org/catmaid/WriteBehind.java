@@ -0,0 +1,206 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Asynchronous writer of encoded tiles.  Encoding threads
+ * {@link #submit(File, byte[]) submit} the encoded bytes of a tile and
+ * return immediately unless the bounded queue is full, a single background
+ * thread writes them to a {@link TileSink}.  Failures are reported by the
+ * next {@link #submit(File, byte[])} or {@link #flush()}.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class WriteBehind
+{
+	static protected class Entry
+	{
+		final protected File file;
+		final protected byte[] bytes;
+
+		public Entry( final File file, final byte[] bytes )
+		{
+			this.file = file;
+			this.bytes = bytes;
+		}
+	}
+
+	final protected int capacity;
+	final protected TileSink sink;
+	final protected ArrayBlockingQueue< Entry > queue;
+	final protected Thread thread;
+
+	/* guarded by this */
+	protected long submitted = 0, written = 0;
+	protected IOException failure = null;
+
+	/**
+	 * @param capacity maximum number of tiles waiting to be written
+	 * @param sink
+	 */
+	public WriteBehind( final int capacity, final TileSink sink )
+	{
+		this.capacity = capacity;
+		this.sink = sink;
+		queue = new ArrayBlockingQueue< Entry >( capacity );
+		thread = new Thread(
+				new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						while ( true )
+						{
+							final Entry entry;
+							try
+							{
+								entry = queue.take();
+							}
+							catch ( final InterruptedException e )
+							{
+								return;
+							}
+							IOException e = null;
+							try
+							{
+								write( entry );
+							}
+							catch ( final IOException ioe )
+							{
+								e = ioe;
+							}
+							catch ( final Throwable t )
+							{
+								/* anything else would end the thread and leave
+								 * flush() waiting forever */
+								e = new IOException( "failed writing " + entry.file, t );
+							}
+							finally
+							{
+								synchronized ( WriteBehind.this )
+								{
+									if ( e != null && failure == null )
+										failure = e;
+									++written;
+									WriteBehind.this.notifyAll();
+								}
+							}
+						}
+					}
+				},
+				"write-behind" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * @param capacity maximum number of tiles waiting to be written
+	 */
+	public WriteBehind( final int capacity )
+	{
+		this( capacity, new FileTileSink() );
+	}
+
+	protected void write( final Entry entry ) throws IOException
+	{
+		sink.write( entry.file, entry.bytes );
+	}
+
+	synchronized protected void rethrow() throws IOException
+	{
+		if ( failure != null )
+		{
+			final IOException e = failure;
+			failure = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Queue an encoded tile for writing, blocks while the queue is full.
+	 */
+	public void submit( final File file, final byte[] bytes ) throws IOException
+	{
+		rethrow();
+		synchronized ( this )
+		{
+			++submitted;
+		}
+		try
+		{
+			queue.put( new Entry( file, bytes ) );
+		}
+		catch ( final InterruptedException e )
+		{
+			synchronized ( this )
+			{
+				--submitted;
+			}
+			Thread.currentThread().interrupt();
+			throw new IOException( "interrupted writing " + file );
+		}
+	}
+
+	/**
+	 * Wait until all submitted tiles are written.
+	 *
+	 * @throws IOException if writing any of them failed
+	 */
+	public void flush() throws IOException
+	{
+		synchronized ( this )
+		{
+			while ( written < submitted )
+			{
+				try
+				{
+					wait();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException( "interrupted flushing tiles" );
+				}
+			}
+		}
+		rethrow();
+	}
+
+	/**
+	 * {@link #flush() Flush} and stop the background thread.
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			thread.interrupt();
+		}
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+}
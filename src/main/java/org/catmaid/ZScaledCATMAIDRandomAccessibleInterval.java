@@ -0,0 +1,228 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.catmaid;
+
+import java.nio.IntBuffer;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.ARGBType;
+
+import org.catmaid.TileCATMAID.Interpolation;
+
+/**
+ * A {@link CATMAIDRandomAccessibleInterval} that is scaled and shifted in
+ * <em>z</em> only, i.e. <em>z</em><sub>target</sub> =
+ * scaleZ&nbsp;&middot;&nbsp;<em>z</em><sub>source</sub>&nbsp;-&nbsp;offsetZ.
+ * This is the transformation that {@link TileCATMAID} applies to make
+ * anisotropic stacks isotropic.  Every target section is a weighted blend of
+ * at most two source sections, so the random access looks up both source
+ * tiles and their weights once per section instead of interpolating all
+ * 2&times;2&times;2 neighbors per pixel like the generic
+ * {@link net.imglib2.interpolation.randomaccess.NLinearInterpolatorARGB}.
+ * Pixel values are identical to nearest neighbor or n-linear interpolation
+ * of the source at integer <em>x,y</em> positions.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class ZScaledCATMAIDRandomAccessibleInterval extends CATMAIDRandomAccessibleInterval
+{
+	public class ZScaledCATMAIDRandomAccess extends CATMAIDRandomAccess
+	{
+		/* second source section and weights, pixels is the first */
+		protected IntBuffer pixels1;
+		protected double w0, w1;
+
+		public ZScaledCATMAIDRandomAccess()
+		{
+			super();
+		}
+
+		public ZScaledCATMAIDRandomAccess( final ZScaledCATMAIDRandomAccess template )
+		{
+			super( template );
+			pixels1 = template.pixels1;
+			w0 = template.w0;
+			w1 = template.w1;
+		}
+
+		@Override
+		protected void fetchPixels()
+		{
+			final double z = position[ 2 ] * invScaleZ + offsetZ * invScaleZ;
+			if ( interpolation == Interpolation.NL )
+			{
+				final long z0 = z < 0 ? ( long )z - 1 : ( long )z;
+				w1 = z - z0;
+				w0 = 1.0 - w1;
+				pixels = fetchTile( r, c, z0 );
+				if ( w1 == 0 )
+					pixels1 = pixels;
+				else
+					pixels1 = fetchTile( r, c, z0 + 1 );
+			}
+			else
+			{
+				final long z0 = z < 0 ? ( long )( z - 0.5 ) : ( long )( z + 0.5 );
+				w1 = 0;
+				w0 = 1.0;
+				pixels = fetchTile( r, c, z0 );
+				pixels1 = pixels;
+			}
+		}
+
+		final private int blend( final int v0, final int v1 )
+		{
+			return Math.min( 255, ( int )( v0 * w0 + v1 * w1 + 0.5 ) );
+		}
+
+		@Override
+		public ARGBType get()
+		{
+			final int i = tileWidth * yMod + xMod;
+			if ( w1 == 0 )
+				t.set( pixels.get( i ) );
+			else
+			{
+				final int p0 = pixels.get( i );
+				final int p1 = pixels1.get( i );
+				final int a = blend( ( p0 >> 24 ) & 0xff, ( p1 >> 24 ) & 0xff );
+				final int red = blend( ( p0 >> 16 ) & 0xff, ( p1 >> 16 ) & 0xff );
+				final int green = blend( ( p0 >> 8 ) & 0xff, ( p1 >> 8 ) & 0xff );
+				final int blue = blend( p0 & 0xff, p1 & 0xff );
+				t.set( ( ( ( ( ( a << 8 ) | red ) << 8 ) | green ) << 8 ) | blue );
+			}
+			return t;
+		}
+
+		@Override
+		public ZScaledCATMAIDRandomAccess copy()
+		{
+			return new ZScaledCATMAIDRandomAccess( this );
+		}
+
+		@Override
+		public ZScaledCATMAIDRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+
+	final protected double invScaleZ, offsetZ;
+	final protected Interpolation interpolation;
+
+	/**
+	 * @param urlFormat
+	 * @param width of scale level 0 in pixels
+	 * @param height of scale level 0 in pixels
+	 * @param depth of scale level 0 in pixels
+	 * @param s scale level
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param superTileSize number of tiles per side of the super-tiles
+	 * 		that are requested at once
+	 * @param fetcher loads encoded tiles
+	 * @param cache keeps decoded and encoded tiles
+	 * @param scaleZ <em>z</em>-scale
+	 * @param offsetZ <em>z</em>-offset in scaled pixels
+	 * @param interpolation
+	 */
+	public ZScaledCATMAIDRandomAccessibleInterval(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final int superTileSize,
+			final TileFetcher fetcher,
+			final TileCache cache,
+			final double scaleZ,
+			final double offsetZ,
+			final Interpolation interpolation )
+	{
+		super( urlFormat, width, height, depth, s, tileWidth, tileHeight, superTileSize, fetcher, cache );
+		invScaleZ = 1.0 / scaleZ;
+		this.offsetZ = offsetZ;
+		this.interpolation = interpolation;
+		max[ 2 ] = ( long )( scaleZ * depth - offsetZ ) - 1;
+	}
+
+	public ZScaledCATMAIDRandomAccessibleInterval(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final int superTileSize,
+			final TileFetcher fetcher,
+			final double scaleZ,
+			final double offsetZ,
+			final Interpolation interpolation )
+	{
+		this( urlFormat, width, height, depth, s, tileWidth, tileHeight, superTileSize, fetcher, new TileCache(), scaleZ, offsetZ, interpolation );
+	}
+
+	public ZScaledCATMAIDRandomAccessibleInterval(
+			final String urlFormat,
+			final long width,
+			final long height,
+			final long depth,
+			final long s,
+			final int tileWidth,
+			final int tileHeight,
+			final double scaleZ,
+			final double offsetZ,
+			final Interpolation interpolation )
+	{
+		this( urlFormat, width, height, depth, s, tileWidth, tileHeight, 1, new TileFetcher(), scaleZ, offsetZ, interpolation );
+	}
+
+	@Override
+	public RandomAccess< ARGBType > randomAccess()
+	{
+		return new ZScaledCATMAIDRandomAccess();
+	}
+
+	/**
+	 * Check whether a {@link TileCATMAID} export with the given scaled
+	 * <em>x,y</em>-offsets can be generated from a
+	 * {@link ZScaledCATMAIDRandomAccessibleInterval}, i.e. whether all
+	 * sample positions are at integer <em>x,y</em>-coordinates.  Nearest
+	 * neighbor sampling is always supported because it rounds the offset.
+	 */
+	static public boolean isSupported(
+			final double offsetX,
+			final double offsetY,
+			final Interpolation interpolation )
+	{
+		return
+				interpolation == Interpolation.NN ||
+				( offsetX == Math.floor( offsetX ) && offsetY == Math.floor( offsetY ) );
+	}
+
+	/**
+	 * Integer shift of the source equivalent to a scaled offset as used in
+	 * {@link #isSupported(double, double, Interpolation)}.
+	 */
+	static public long shift( final double offset )
+	{
+		return offset < 0 ? ( long )( offset - 0.5 ) : ( long )( offset + 0.5 );
+	}
+}